@@ -2,14 +2,28 @@
 #define _GNU_SOURCE
 
 #include <assert.h>
+#include <errno.h>
+#include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include <fcntl.h>
+#include <pty.h>
+#include <termios.h>
+#include <time.h>
 #include <unistd.h>
+#include <sys/sendfile.h>
 
 #include <jni.h>
 
 #include "java_lang_FlatpakProcessImpl.h"
 
+/* The maximum number of bytes to move in a single call to splice(2) or sendfile(2) */
+#define TRANSFER_CHUNK (1024 * 1024)
+
+/* Indexes of the native stages in the array of spawn trace timestamps, see java.lang.SpawnTrace */
+#define STAGE_FORKING 4
+#define STAGE_EXECUTED 5
+
 typedef struct ProcessData {
     int in[2];
     int out[2];
@@ -70,6 +84,31 @@ static void start_process(ProcessData *p) {
     execvpe(p->argv[0], (char * const *) p->argv, (char * const *) p->envv);
 }
 
+/**
+ * Throw a java.io.IOException whose message is the given prefix followed by the description of the given error number.
+ */
+static void throw_io_exception(JNIEnv *env, const char *prefix, int error) {
+    char message[256];
+    snprintf(message, sizeof(message), "%s: %s", prefix, strerror(error));
+    jclass clazz = (*env)->FindClass(env, "java/io/IOException");
+    if (clazz != NULL) {
+        (*env)->ThrowNew(env, clazz, message);
+    }
+}
+
+/**
+ * Store the current time of the monotonic clock, which is the same clock used by System.nanoTime(), into the given
+ * array of spawn trace timestamps if there is one.
+ */
+static void record_stage(JNIEnv *env, jlongArray stages, jsize stage) {
+    if (stages != NULL) {
+        struct timespec ts;
+        clock_gettime(CLOCK_MONOTONIC, &ts);
+        jlong stamp = (jlong) ts.tv_sec * 1000000000 + ts.tv_nsec;
+        (*env)->SetLongArrayRegion(env, stages, stage, 1, &stamp);
+    }
+}
+
 /**
  * Convert a contiguous block of bytes that contains null-terminated strings into a vector of such strings. Returned
  * is a pointer to a null-terminated vector of null-terminated strings. This memory must be free'd by the caller.
@@ -94,7 +133,8 @@ static const char **initialise_vector(const char *bytes, int count) {
 }
 
 JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_forkAndExecHostCommand(JNIEnv *env, jobject process,
-        jbyteArray argv, jint argc, jbyteArray envv, jint envc, jintArray fds, jboolean redirectErrStream) {
+        jbyteArray argv, jint argc, jbyteArray envv, jint envc, jintArray fds, jboolean redirectErrStream,
+        jintArray terminal, jlongArray stages) {
 
     ProcessData *p = calloc(1, sizeof(ProcessData));
 
@@ -106,7 +146,36 @@ JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_forkAndExecHostCommand(
     const char *envBytes = (const char*) (*env)->GetByteArrayElements(env, envv, NULL);
     p->envv = initialise_vector(envBytes, envc);
 
-    /* Set up file descriptors and/or pipes to child process */
+    /*
+     * If a terminal is requested, open a pseudo-terminal in raw mode so that output passes through unaltered, with
+     * the requested window size
+     */
+    int pty_master = -1;
+    int pty_slave = -1;
+    if (terminal != NULL) {
+        jint size[2];
+        (*env)->GetIntArrayRegion(env, terminal, 0, 2, size);
+        struct winsize ws = { .ws_col = size[0], .ws_row = size[1] };
+        struct termios tio;
+        memset(&tio, 0, sizeof(tio));
+        cfmakeraw(&tio);
+        if (openpty(&pty_master, &pty_slave, NULL, &tio, &ws) == -1) {
+            throw_io_exception(env, "Unable to open pseudo-terminal", errno);
+            (*env)->ReleaseByteArrayElements(env, argv, (jbyte*) argBytes, JNI_ABORT);
+            (*env)->ReleaseByteArrayElements(env, envv, (jbyte*) envBytes, JNI_ABORT);
+            free(p->argv);
+            free(p->envv);
+            free(p);
+            return -1;
+        }
+    }
+
+    /*
+     * Set up file descriptors and/or pipes to child process, standard output uses the pseudo-terminal instead of a
+     * pipe if there is one, the parent side being a duplicate of the master and the child side a duplicate of the
+     * slave, and standard error is merged into the terminal if standard output is using it. Standard input is always
+     * a pipe, because closing the master side of a terminal in raw mode does not signal end of file to the child
+     */
     jint *std_fds = (*env)->GetIntArrayElements(env, fds, NULL);
     p->fds[0] = std_fds[0];
     if (p->fds[0] == -1) {
@@ -115,18 +184,29 @@ JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_forkAndExecHostCommand(
         p->in[0] = p->in[1] = -1;
     }
     p->fds[1] = std_fds[1];
-    if (p->fds[1] == -1) {
+    if (p->fds[1] == -1 && pty_master != -1) {
+        p->out[0] = fcntl(pty_master, F_DUPFD_CLOEXEC, 0);
+        p->out[1] = fcntl(pty_slave, F_DUPFD_CLOEXEC, 0);
+    } else if (p->fds[1] == -1) {
         assert(pipe(p->out) != -1);
     } else {
         p->out[0] = p->out[1] = -1;
     }
     p->fds[2] = std_fds[2];
-    if (p->fds[2] == -1) {
+    if (p->fds[2] == -1 && p->fds[1] == -1 && pty_master != -1) {
+        p->err[0] = -1;
+        p->err[1] = fcntl(pty_slave, F_DUPFD_CLOEXEC, 0);
+    } else if (p->fds[2] == -1) {
         assert(pipe(p->err) != -1);
     } else {
         p->err[0] = p->err[1] = -1;
     }
 
+    if (pty_master != -1) {
+        close(pty_master);
+        close(pty_slave);
+    }
+
     /* Whether the child process should merge together its stderr into the stdout stream */
     p->redirectErrStream = redirectErrStream;
 
@@ -135,10 +215,12 @@ JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_forkAndExecHostCommand(
      * process image with a call to exec(3) straight away. The child process will disappear into start_process()
      * and never return while the parent process will continue on from here.
      */
+    record_stage(env, stages, STAGE_FORKING);
     int child_pid = vfork();
     if (child_pid == 0) {
         start_process(p);
     }
+    record_stage(env, stages, STAGE_EXECUTED);
 
     /* Close the child side of the pipes */
     if (p->in[0] != -1) {
@@ -166,3 +248,145 @@ JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_forkAndExecHostCommand(
 
     return child_pid;
 }
+
+JNIEXPORT jint JNICALL Java_java_lang_FlatpakProcessImpl_dupDescriptor(JNIEnv *env, jclass clazz, jint fd) {
+    int dup_fd = fcntl(fd, F_DUPFD_CLOEXEC, 0);
+    if (dup_fd == -1) {
+        throw_io_exception(env, "Unable to duplicate file descriptor", errno);
+    }
+    return dup_fd;
+}
+
+/**
+ * Replace what a file descriptor refers to with /dev/null, so that a read that is retried on it after being
+ * interrupted returns end of file instead of waiting for the pipe it used to refer to. The descriptor stays open so
+ * that its number cannot be reused before it is closed.
+ */
+JNIEXPORT void JNICALL Java_java_lang_FlatpakProcessImpl_preCloseDescriptor(JNIEnv *env, jclass clazz, jint fd) {
+    int null_fd = open("/dev/null", O_RDONLY | O_CLOEXEC);
+    if (null_fd == -1) {
+        throw_io_exception(env, "Unable to open /dev/null", errno);
+        return;
+    }
+    if (dup3(null_fd, fd, O_CLOEXEC) == -1) {
+        throw_io_exception(env, "Unable to replace file descriptor", errno);
+    }
+    close(null_fd);
+}
+
+/**
+ * Move everything from one file descriptor to another until end of file without copying through user-space, if the
+ * kind of file descriptors allows it. splice(2) is used when either side is a pipe, which is always the case for the
+ * standard streams of host processes, then sendfile(2) when reading from a regular file, and finally we fall back to
+ * a plain read(2)/write(2) loop. Both file descriptors are closed before returning.
+ */
+JNIEXPORT jlong JNICALL Java_java_lang_FlatpakProcessImpl_transferDescriptors(JNIEnv *env, jclass clazz, jint in,
+        jint out) {
+    enum { SPLICE, SENDFILE, COPY } method = SPLICE;
+    char buf[8192];
+    jlong total = 0;
+    int error = 0;
+
+    for (;;) {
+        ssize_t n;
+        if (method == SPLICE) {
+            n = splice(in, NULL, out, NULL, TRANSFER_CHUNK, SPLICE_F_MOVE | SPLICE_F_MORE);
+        } else if (method == SENDFILE) {
+            n = sendfile(out, in, NULL, TRANSFER_CHUNK);
+        } else {
+            n = read(in, buf, sizeof(buf));
+            for (ssize_t written = 0; n > 0 && written < n;) {
+                ssize_t w = write(out, buf + written, n - written);
+                if (w == -1 && errno != EINTR) {
+                    error = errno;
+                    break;
+                }
+                written += w > 0 ? w : 0;
+            }
+            if (error) {
+                break;
+            }
+        }
+        if (n == 0) {
+            break;
+        }
+        if (n == -1) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if ((errno == EINVAL || errno == ENOSYS) && method != COPY && total == 0) {
+                method = method == SPLICE ? SENDFILE : COPY;
+                continue;
+            }
+            error = errno;
+            break;
+        }
+        total += n;
+    }
+
+    close(in);
+    close(out);
+    if (error) {
+        throw_io_exception(env, "Unable to transfer data", error);
+    }
+    return total;
+}
+
+/**
+ * Copy a range of a regular file into another file descriptor, which is typically the stdin pipe of a process, using
+ * splice(2) with an explicit offset so that the same file descriptor may be used concurrently to feed many processes
+ * without copying through user-space. Only the output file descriptor is closed before returning.
+ */
+JNIEXPORT jlong JNICALL Java_java_lang_FlatpakProcessImpl_spliceFile(JNIEnv *env, jclass clazz, jint in,
+        jlong offset, jlong length, jint out) {
+    loff_t off = offset;
+    char buf[8192];
+    int use_splice = 1;
+    jlong total = 0;
+    int error = 0;
+
+    while (total < length) {
+        size_t chunk = (length - total) < TRANSFER_CHUNK ? (size_t) (length - total) : TRANSFER_CHUNK;
+        ssize_t n;
+        if (use_splice) {
+            n = splice(in, &off, out, NULL, chunk, SPLICE_F_MOVE | SPLICE_F_MORE);
+        } else {
+            n = pread(in, buf, chunk < sizeof(buf) ? chunk : sizeof(buf), off);
+            for (ssize_t written = 0; n > 0 && written < n;) {
+                ssize_t w = write(out, buf + written, n - written);
+                if (w == -1 && errno != EINTR) {
+                    error = errno;
+                    break;
+                }
+                written += w > 0 ? w : 0;
+            }
+            if (error) {
+                break;
+            }
+            if (n > 0) {
+                off += n;
+            }
+        }
+        if (n == 0) {
+            break;
+        }
+        if (n == -1) {
+            if (errno == EINTR) {
+                continue;
+            }
+            if ((errno == EINVAL || errno == ENOSYS) && use_splice) {
+                use_splice = 0;
+                continue;
+            }
+            error = errno;
+            break;
+        }
+        total += n;
+    }
+
+    close(out);
+    if (error) {
+        throw_io_exception(env, "Unable to feed data", error);
+    }
+    return total;
+}
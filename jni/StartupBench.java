@@ -0,0 +1,26 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+
+/**
+ * Starts a process and waits for it, which is what the startup benchmark times
+ * and what the class data sharing archive of the runtime image is trained on.
+ * Any arguments are names of classes to load without initialising them, so
+ * that they are included in the archive too.
+ */
+public class StartupBench {
+
+    public static void main(String[] args) throws Exception {
+        for (String name : args) {
+            Class.forName(name, false, null);
+        }
+        Process p = new ProcessBuilder("true").inheritIO().start();
+        System.exit(p.waitFor());
+    }
+}
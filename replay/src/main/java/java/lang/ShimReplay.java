@@ -0,0 +1,297 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a workload recorded by {@link SpawnRecorder} through
+ * {@link ProcessImplFactory}, with a backend that replaces the commands that
+ * are finally executed in the sandbox and on the sandbox host, and reports the
+ * latency of starting processes and the throughput achieved.
+ *
+ * Each recorded process is started through {@link ProcessBuilder} with the
+ * recorded program and arguments of the recorded number and total size, and
+ * goes through the routing, admission, coalescing, path translation and
+ * argument spooling of the shim as usual. Only the command that would finally
+ * be executed is replaced: the "which" probes of the shim are answered so that
+ * each process is routed where it was routed when it was recorded, and in
+ * place of a process of the workload a small shell script is executed locally
+ * that consumes its input, produces the recorded number of bytes on its
+ * standard streams and exits after the recorded lifetime. So the latencies
+ * reported include forking and executing that script, but not flatpak-spawn or
+ * the programs of the workload.
+ *
+ * Usage: ShimReplay [--speed=N] [--threads=N] TRACE
+ *
+ * By default processes are started at their recorded times, which reproduces
+ * the recorded concurrency. Recorded times and lifetimes are divided by the
+ * speed, and a speed of 0 starts every process as soon as one of the given
+ * number of threads is free, to measure the maximum throughput. System
+ * properties of the shim, such as "flatpak.hostcommandrunner.maxLiveProcesses",
+ * apply to the replay as usual, so their effect on a workload can be compared.
+ * The resolution cache is private to the replay, so that its answers never
+ * reach other JVMs.
+ */
+final class ShimReplay {
+
+    private static final ThreadLocal<SpawnRecorder.Record> current = new ThreadLocal<>();
+
+    private final List<SpawnRecorder.Record> records;
+    private final double speed;
+    private final int threads;
+
+    private final long[] latencies;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger mismatches = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger peakConcurrency = new AtomicInteger();
+    private final AtomicLong lateNanos = new AtomicLong();
+    private final AtomicReference<Throwable> firstUnexpectedFailure = new AtomicReference<>();
+
+    private ShimReplay(List<SpawnRecorder.Record> records, double speed, int threads) {
+        this.records = records;
+        this.speed = speed;
+        this.threads = threads;
+        this.latencies = new long[records.size()];
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double speed = 1;
+        int threads = 0;
+        String trace = null;
+        for (String arg : args) {
+            if (arg.startsWith("--speed=")) {
+                speed = Double.parseDouble(arg.substring("--speed=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else {
+                trace = arg;
+            }
+        }
+        if (trace == null || speed < 0) {
+            System.err.println("Usage: ShimReplay [--speed=N] [--threads=N] TRACE");
+            System.exit(2);
+        }
+
+        List<SpawnRecorder.Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(trace)))) {
+            SpawnRecorder.readHeader(in);
+            SpawnRecorder.Record r;
+            while ((r = SpawnRecorder.Record.read(in)) != null) {
+                records.add(r);
+            }
+        }
+        // Records are written as processes exit
+        records.sort(Comparator.comparingLong(r -> r.startMicros));
+        if (threads <= 0) {
+            threads = records.stream().mapToInt(r -> r.concurrency).max().orElse(1);
+        }
+
+        ProcessImplFactory.setBackend(new FakeBackend(speed));
+        new ShimReplay(records, speed, threads).run();
+    }
+
+    private void run() throws InterruptedException {
+        // Open loop replays need a thread for every process that may be running at once
+        ExecutorService executor = speed == 0 ? Executors.newFixedThreadPool(threads, ShimReplay::newThread)
+                : Executors.newCachedThreadPool(ShimReplay::newThread);
+        long origin = System.nanoTime();
+        long first = records.isEmpty() ? 0 : records.get(0).startMicros;
+        for (int i = 0; i < records.size(); i++) {
+            SpawnRecorder.Record record = records.get(i);
+            int index = i;
+            if (speed > 0) {
+                long due = origin + (long) ((record.startMicros - first) * 1000 / speed);
+                long now;
+                while ((now = System.nanoTime()) < due) {
+                    LockSupport.parkNanos(due - now);
+                }
+                lateNanos.addAndGet(now - due);
+            }
+            executor.execute(() -> replay(index, record));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        report(System.nanoTime() - origin);
+    }
+
+    private static Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "replay");
+        t.setDaemon(true);
+        return t;
+    }
+
+    private void replay(int index, SpawnRecorder.Record record) {
+        String[] cmdarray = new String[Math.max(record.argc, 1)];
+        cmdarray[0] = record.program;
+        // Only the shape of the arguments is recorded
+        long remaining = record.argBytes;
+        for (int i = 1; i < cmdarray.length; i++) {
+            int length = (int) Math.min(remaining / (cmdarray.length - i), Integer.MAX_VALUE - 8);
+            char[] arg = new char[length];
+            Arrays.fill(arg, 'x');
+            cmdarray[i] = new String(arg);
+            remaining -= length;
+        }
+
+        int n = running.incrementAndGet();
+        peakConcurrency.accumulateAndGet(n, Math::max);
+        current.set(record);
+        try {
+            long start = System.nanoTime();
+            Process process;
+            try {
+                process = new ProcessBuilder(cmdarray).start();
+            } catch (IOException | RuntimeException | LinkageError e) {
+                // Such as the native library of the shim not being found
+                latencies[index] = System.nanoTime() - start;
+                if (record.route != SpawnRecorder.FAILED) {
+                    mismatches.incrementAndGet();
+                    firstUnexpectedFailure.compareAndSet(null, e);
+                }
+                failures.incrementAndGet();
+                return;
+            }
+            latencies[index] = System.nanoTime() - start;
+            boolean recordedOnHost = record.route == SpawnRecorder.HOST || record.route == SpawnRecorder.COALESCED;
+            boolean onHost = process instanceof FlatpakProcessImpl || process instanceof CoalescedExecution.View;
+            if (record.route == SpawnRecorder.FAILED || onHost != recordedOnHost) {
+                mismatches.incrementAndGet();
+            }
+            try (OutputStream stdin = process.getOutputStream()) {
+                byte[] buf = new byte[8192];
+                for (long left = record.stdinBytes; left > 0; left -= buf.length) {
+                    stdin.write(buf, 0, (int) Math.min(left, buf.length));
+                }
+            }
+            // Drained at the same time, since the process blocks once either pipe is full
+            CompletableFuture<Void> stderr = CompletableFuture.runAsync(() -> discard(process.getErrorStream()),
+                    ShimExecutor.get());
+            discard(process.getInputStream());
+            stderr.join();
+            process.waitFor();
+        } catch (IOException | UncheckedIOException | CompletionException | InterruptedException e) {
+            failures.incrementAndGet();
+        } finally {
+            current.remove();
+            running.decrementAndGet();
+            completed.incrementAndGet();
+        }
+    }
+
+    private static void discard(InputStream in) {
+        try (InputStream stream = in) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        long[] replayed = latencies.clone();
+        long[] recorded = records.stream().mapToLong(r -> r.startLatencyMicros * 1000).toArray();
+        Arrays.sort(replayed);
+        Arrays.sort(recorded);
+        System.out.printf("processes:   %d (%d failed to start, %d routed differently than recorded)%n",
+                completed.get(), failures.get(), mismatches.get());
+        Throwable failure = firstUnexpectedFailure.get();
+        if (failure != null) {
+            System.out.printf("first unexpected failure: %s%n", failure);
+        }
+        System.out.printf("elapsed:     %.3f s%n", elapsedNanos / 1e9);
+        System.out.printf("throughput:  %.1f starts/s%n", completed.get() / (elapsedNanos / 1e9));
+        System.out.printf("concurrency: %d peak (%d recorded)%n", peakConcurrency.get(),
+                records.stream().mapToInt(r -> r.concurrency).max().orElse(0));
+        if (speed > 0 && !records.isEmpty()) {
+            System.out.printf("schedule:    %.1f us late on average%n", lateNanos.get() / 1e3 / records.size());
+        }
+        System.out.printf("%-12s %10s %10s%n", "start (us)", "replayed", "recorded");
+        for (double p : new double[] { 50, 90, 99, 99.9, 100 }) {
+            String name = p == 100 ? "max" : "p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p));
+            System.out.printf("%-12s %10d %10d%n", name, percentile(replayed, p) / 1000,
+                    percentile(recorded, p) / 1000);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Stands in for both the sandbox and the sandbox host.
+     */
+    private static final class FakeBackend implements ProcessImplFactory.Backend {
+        private final double speed;
+
+        FakeBackend(double speed) {
+            this.speed = speed;
+        }
+
+        @Override
+        public String[] command(boolean onHost, String[] cmdarray) {
+            SpawnRecorder.Record record = current.get();
+            String last = cmdarray[cmdarray.length - 1];
+            if (cmdarray.length > 1 && last.startsWith("which ")) {
+                // A probe of the shim, found only where the process was recorded as running
+                boolean found = record != null && (onHost ? record.route == SpawnRecorder.HOST
+                        || record.route == SpawnRecorder.COALESCED : record.route == SpawnRecorder.SANDBOX);
+                String exe = last.substring("which ".length());
+                return script(found ? "echo /usr/bin/" + exe : "exit 1");
+            }
+            if (record == null) {
+                // Started by the shim itself, such as to take the host's login environment
+                return script("cat >/dev/null");
+            }
+            StringBuilder script = new StringBuilder("cat >/dev/null");
+            if (record.stdoutBytes > 0) {
+                script.append("; head -c ").append(record.stdoutBytes).append(" /dev/zero");
+            }
+            if (record.stderrBytes > 0) {
+                script.append("; head -c ").append(record.stderrBytes).append(" /dev/zero >&2");
+            }
+            long lifetimeMicros = speed == 0 ? 0 : (long) (record.lifetimeMicros / speed);
+            if (lifetimeMicros > 0) {
+                script.append(String.format(Locale.ROOT, "; sleep %d.%06d", lifetimeMicros / 1_000_000,
+                        lifetimeMicros % 1_000_000));
+            }
+            return script(script.toString());
+        }
+
+        private static String[] script(String script) {
+            return new String[] { "/bin/sh", "-c", script };
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves huge command lines and environments out of the flatpak-spawn
+ * invocation and into a spool file, so that they do not run into the argument
+ * size limit when executing flatpak-spawn in the sandbox, nor the message size
+ * limits of the session bus.
+ *
+ * Spooling happens when the total size of the command's arguments and
+ * environment exceeds the number of bytes given by the
+ * "flatpak.hostcommandrunner.spoolThreshold" system property. Spool files are
+ * written to the application's cache directory, which is at the same path in
+ * the sandbox and on the host. There are two ways the command is rebuilt on the
+ * host:
+ * <ul>
+ * <li>If the command's name is listed in the
+ * "flatpak.hostcommandrunner.argfileCommands" system property (a comma
+ * separated list, for example "gcc,g++,javac") and only its arguments are
+ * oversized, the arguments are written in the "@argfile" format understood by
+ * such tools and the command is given "@/path/to/spool" as its only
+ * argument.</li>
+ * <li>Otherwise the environment and arguments are written as NUL-terminated
+ * strings, and the command is run through a bash one-liner on the host that
+ * reads them back, deletes the spool file, exports the environment and then
+ * executes the command in place.</li>
+ * </ul>
+ */
+final class ArgumentSpool {
+
+    private static final long THRESHOLD = Long.getLong("flatpak.hostcommandrunner.spoolThreshold", 128 * 1024);
+
+    private static final Set<String> ARGFILE_COMMANDS = new HashSet<>(
+            Arrays.asList(System.getProperty("flatpak.hostcommandrunner.argfileCommands", "").split(",")));
+
+    /** Environment variables that flatpak-spawn itself needs in order to reach the session bus. */
+    private static final Set<String> SPAWN_ENVIRONMENT = new HashSet<>(
+            Arrays.asList("DISPLAY", "DBUS_SESSION_BUS_ADDRESS", "XDG_RUNTIME_DIR"));
+
+    private static final String REBUILD_SCRIPT = "mapfile -d '' -t a < \"$0\" && rm -f -- \"$0\" && n=${a[0]} && "
+            + "for ((i = 1; i <= n; i++)); do export \"${a[i]}\"; done && exec \"${a[@]:n+1}\"";
+
+    private ArgumentSpool() {
+    }
+
+    /**
+     * Spools the given command and environment if they are too big, modifying
+     * them in place so they instead refer to the spool file.
+     *
+     * @return the spool file, which the caller must delete once the command has
+     *         exited, or null if no spooling was necessary
+     */
+    static Path spoolIfNeeded(List<String> command, List<String> environment) throws IOException {
+        long argBytes = size(command.subList(1, command.size()));
+        long envBytes = size(environment);
+        if (argBytes + envBytes <= THRESHOLD) {
+            return null;
+        }
+
+        Path dir = spoolDirectory();
+        Files.createDirectories(dir);
+        Path spool = Files.createTempFile(dir, "args-", ".spool");
+        try {
+            String name = Paths.get(command.get(0)).getFileName().toString();
+            if (ARGFILE_COMMANDS.contains(name) && envBytes <= THRESHOLD) {
+                writeArgfile(spool, command.subList(1, command.size()));
+                command.subList(1, command.size()).clear();
+                command.add("@" + spool);
+            } else {
+                List<String> exported = new ArrayList<>();
+                for (Iterator<String> it = environment.iterator(); it.hasNext();) {
+                    String entry = it.next();
+                    exported.add(entry);
+                    int eq = entry.indexOf('=');
+                    if (!SPAWN_ENVIRONMENT.contains(eq == -1 ? entry : entry.substring(0, eq))) {
+                        it.remove();
+                    }
+                }
+                writeStrings(spool, exported, command);
+                command.clear();
+                command.addAll(Arrays.asList("bash", "-c", REBUILD_SCRIPT, spool.toString()));
+            }
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    private static long size(List<String> strings) {
+        long size = 0;
+        for (String s : strings) {
+            size += s.length() + 1;
+        }
+        return size;
+    }
+
+    private static Path spoolDirectory() {
+        String cache = System.getenv("XDG_CACHE_HOME");
+        if (cache == null || cache.isEmpty()) {
+            cache = System.getProperty("user.home") + "/.cache";
+        }
+        return Paths.get(cache, "flatpak-dev-shim");
+    }
+
+    private static void writeArgfile(Path spool, List<String> args) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(spool))) {
+            StringBuilder sb = new StringBuilder();
+            for (String arg : args) {
+                sb.setLength(0);
+                sb.append('"');
+                for (int i = 0; i < arg.length(); i++) {
+                    char c = arg.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        sb.append('\\');
+                    }
+                    sb.append(c);
+                }
+                sb.append("\"\n");
+                out.write(sb.toString().getBytes());
+            }
+        }
+    }
+
+    private static void writeStrings(Path spool, List<String> environment, List<String> command)
+            throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(spool))) {
+            out.write(Integer.toString(environment.size()).getBytes(StandardCharsets.US_ASCII));
+            out.write(0);
+            for (String entry : environment) {
+                out.write(entry.getBytes());
+                out.write(0);
+            }
+            for (String arg : command) {
+                out.write(arg.getBytes());
+                out.write(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A shim-wide pool of the buffers used by the standard stream pipes of host
+ * processes. The streams only take a buffer from the pool once they are first
+ * used, and give it back when they are closed or the process exits, so
+ * processes whose streams are never touched cost no buffers at all and
+ * processes that are started one after another reuse the same buffers.
+ *
+ * The number of idle buffers kept in the pool is limited by the
+ * "flatpak.hostcommandrunner.bufferPoolSize" system property, 64 by default.
+ * Buffers given back when the pool is full are left to the garbage collector.
+ */
+final class BufferPool {
+
+    /** The size of each buffer, which is the same as the default size of buffered streams. */
+    static final int BUFFER_SIZE = 8192;
+
+    private static final int MAX_IDLE = Integer.getInteger("flatpak.hostcommandrunner.bufferPoolSize", 64);
+
+    private static final ConcurrentLinkedDeque<byte[]> idle = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger idleCount = new AtomicInteger();
+
+    private static final LongAdder acquired = new LongAdder();
+    private static final LongAdder allocated = new LongAdder();
+    private static final LongAdder released = new LongAdder();
+    private static final LongAdder discarded = new LongAdder();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     */
+    static byte[] acquire() {
+        acquired.increment();
+        byte[] buf = idle.pollFirst();
+        if (buf != null) {
+            idleCount.decrementAndGet();
+            return buf;
+        }
+        allocated.increment();
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it again.
+     */
+    static void release(byte[] buf) {
+        if (buf == null || buf.length != BUFFER_SIZE) {
+            return;
+        }
+        released.increment();
+        if (idleCount.incrementAndGet() > MAX_IDLE) {
+            idleCount.decrementAndGet();
+            discarded.increment();
+            return;
+        }
+        // Most recently used first, since it is most likely to still be in cache
+        idle.offerFirst(buf);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the pool.
+     */
+    static Map<String, Long> statistics() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("bufferSize", (long) BUFFER_SIZE);
+        stats.put("maxIdle", (long) MAX_IDLE);
+        stats.put("idle", (long) idleCount.get());
+        stats.put("acquired", acquired.sum());
+        stats.put("allocated", allocated.sum());
+        stats.put("released", released.sum());
+        stats.put("discarded", discarded.sum());
+        return stats;
+    }
+}
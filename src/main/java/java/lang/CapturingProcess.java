@@ -0,0 +1,211 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A process whose standard output is captured into a file in a memory-backed
+ * filesystem instead of a pipe, so that when the process exits the whole of
+ * its output can be handed back as a read-only mapping without ever being
+ * copied onto the Java heap.
+ *
+ * The capture file is unlinked as soon as the process has been started, so it
+ * has no name and its storage is released when the mapping is garbage
+ * collected. The redirect is an ordinary file redirect, so this works whether
+ * the process is started in the sandbox or on the sandbox host.
+ */
+final class CapturingProcess extends Process {
+
+    private final Process delegate;
+    private final CompletableFuture<ByteBuffer> output;
+
+    private CapturingProcess(Process delegate, FileChannel channel) {
+        this.delegate = delegate;
+        this.output = delegate.onExit().handle((unusedProcess, unusedThrowable) -> {
+            try (FileChannel c = channel) {
+                long size = c.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Captured output is too large to map: " + size + " bytes");
+                }
+                return c.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Starts a process as described by the given builder except that its
+     * standard output is captured.
+     */
+    static Process start(ProcessBuilder builder) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(builder.command());
+        pb.directory(builder.directory());
+        Map<String, String> environment = pb.environment();
+        environment.clear();
+        environment.putAll(builder.environment());
+        pb.redirectInput(builder.redirectInput());
+        pb.redirectError(builder.redirectError());
+        pb.redirectErrorStream(builder.redirectErrorStream());
+
+        Path file = Files.createTempFile(captureDirectory(), "flatpak-shim-", ".capture");
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            pb.redirectOutput(file.toFile());
+            Process process = pb.start();
+            if (pb.redirectInput() == ProcessBuilder.Redirect.PIPE) {
+                // Nobody can write to the process, so let it see the end of its input
+                process.getOutputStream().close();
+            }
+            return new CapturingProcess(process, channel);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw e;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Prefer a memory-backed filesystem for capture files, the per-user runtime
+     * directory is always a tmpfs.
+     */
+    static Path captureDirectory() {
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDir != null && Files.isDirectory(Paths.get(runtimeDir))) {
+            return Paths.get(runtimeDir);
+        }
+        Path shm = Paths.get("/dev/shm");
+        if (Files.isDirectory(shm)) {
+            return shm;
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Waits for the process to exit and then returns a read-only view of
+     * everything it wrote to its standard output.
+     */
+    ByteBuffer capturedOutput() throws IOException, InterruptedException {
+        try {
+            return output.get().duplicate();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Unable to capture output", cause);
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return delegate.getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return delegate.getInputStream();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return delegate.getErrorStream();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        return delegate.waitFor();
+    }
+
+    @Override
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.waitFor(timeout, unit);
+    }
+
+    @Override
+    public int exitValue() {
+        return delegate.exitValue();
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+    }
+
+    @Override
+    public Process destroyForcibly() {
+        delegate.destroyForcibly();
+        return this;
+    }
+
+    @Override
+    public boolean supportsNormalTermination() {
+        return delegate.supportsNormalTermination();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return delegate.isAlive();
+    }
+
+    @Override
+    public long pid() {
+        return delegate.pid();
+    }
+
+    @Override
+    public CompletableFuture<Process> onExit() {
+        return delegate.onExit().thenApply(unused -> this);
+    }
+
+    @Override
+    public ProcessHandle toHandle() {
+        return delegate.toHandle();
+    }
+
+    @Override
+    public ProcessHandle.Info info() {
+        return delegate.info();
+    }
+
+    @Override
+    public Stream<ProcessHandle> children() {
+        return delegate.children();
+    }
+
+    @Override
+    public Stream<ProcessHandle> descendants() {
+        return delegate.descendants();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
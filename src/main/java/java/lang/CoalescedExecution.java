@@ -0,0 +1,426 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Lets concurrent requests to run the same host command share a single
+ * execution of it. IDE plugins often ask for the same thing several times
+ * within a few milliseconds, for example "git rev-parse --show-toplevel" when a
+ * project is opened, and there is no point doing the round trip to the host
+ * more than once.
+ *
+ * Coalescing is opt-in: only commands whose arguments, joined with spaces,
+ * match the regular expression given by the "flatpak.hostcommandrunner.coalesce"
+ * system property are eligible, and only when all their standard streams are
+ * pipes. Requests are identical when their arguments, environment, working
+ * directory and error stream redirection are all the same. The standard input
+ * of a shared execution is closed immediately, so eligible commands must not
+ * expect any input.
+ *
+ * Each caller gets its own independent process whose output streams read from
+ * the start of the shared execution's output, which is buffered in full for as
+ * long as any of them can still be read.
+ */
+final class CoalescedExecution {
+
+    private static final Pattern PATTERN;
+    static {
+        String regex = System.getProperty("flatpak.hostcommandrunner.coalesce");
+        PATTERN = regex == null || regex.isEmpty() ? null : Pattern.compile(regex);
+    }
+
+    private static final Map<Key, CoalescedExecution> executions = new ConcurrentHashMap<>();
+
+    private final Key key;
+    private final CompletableFuture<FlatpakProcessImpl> leader = new CompletableFuture<>();
+    private final SharedOutput stdout = new SharedOutput();
+    private final SharedOutput stderr = new SharedOutput();
+    private int views;
+    private int destroyedViews;
+
+    private static final class Key {
+        final List<String> command;
+        final Map<String, String> environment;
+        final String dir;
+        final boolean redirectErrStream;
+
+        Key(String[] cmdarray, Map<String, String> environment, String dir, boolean redirectErrStream) {
+            this.command = Arrays.asList(cmdarray.clone());
+            this.environment = environment == null ? null : new HashMap<>(environment);
+            this.dir = dir;
+            this.redirectErrStream = redirectErrStream;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return command.equals(k.command) && Objects.equals(environment, k.environment)
+                    && Objects.equals(dir, k.dir) && redirectErrStream == k.redirectErrStream;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(command, environment, dir, redirectErrStream);
+        }
+    }
+
+    private CoalescedExecution(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * Whether a request to run the given command may share an execution.
+     */
+    static boolean isEligible(String[] cmdarray, ProcessBuilder.Redirect[] redirects) {
+        if (PATTERN == null) {
+            return false;
+        }
+        if (redirects != null) {
+            for (ProcessBuilder.Redirect redirect : redirects) {
+                if (redirect != ProcessBuilder.Redirect.PIPE) {
+                    return false;
+                }
+            }
+        }
+        return PATTERN.matcher(String.join(" ", cmdarray)).matches();
+    }
+
+    /**
+     * Joins an identical execution that is already running, or starts a new one.
+     *
+     * @return a process that is a view of the shared execution
+     */
+    static Process start(String[] cmdarray, Map<String, String> environment, String dir, boolean redirectErrStream,
+            HostLauncher launcher) throws IOException {
+        Key key = new Key(cmdarray, environment, dir, redirectErrStream);
+        while (true) {
+            CoalescedExecution execution = new CoalescedExecution(key);
+            CoalescedExecution existing = executions.putIfAbsent(key, execution);
+            if (existing == null) {
+                execution.launch(cmdarray, environment, dir, redirectErrStream, launcher);
+                return execution.newView();
+            }
+            View view = null;
+            synchronized (existing) {
+                // An execution that has been abandoned by all its views cannot be joined
+                if (existing.views > existing.destroyedViews || existing.views == 0) {
+                    view = existing.newView();
+                }
+            }
+            if (view == null) {
+                executions.remove(key, existing);
+                continue;
+            }
+            try {
+                existing.leader.join();
+            } catch (CompletionException e) {
+                throw new IOException("Unable to start shared execution", e.getCause());
+            }
+            return view;
+        }
+    }
+
+    /**
+     * Starts a process on the sandbox host.
+     */
+    @FunctionalInterface
+    interface HostLauncher {
+        FlatpakProcessImpl start(String[] cmdarray, Map<String, String> environment, String dir,
+                ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException;
+    }
+
+    private void launch(String[] cmdarray, Map<String, String> environment, String dir, boolean redirectErrStream,
+            HostLauncher launcher) throws IOException {
+        FlatpakProcessImpl process;
+        try {
+            process = launcher.start(cmdarray, environment, dir, null, redirectErrStream);
+        } catch (IOException | RuntimeException e) {
+            executions.remove(key, this);
+            leader.completeExceptionally(e);
+            throw e;
+        }
+        process.getOutputStream().close();
+        pump(process.getInputStream(), stdout);
+        pump(process.getErrorStream(), stderr);
+        process.completion().whenComplete((unusedExitcode, unusedThrowable) -> executions.remove(key, this));
+        leader.complete(process);
+    }
+
+    private static void pump(InputStream in, SharedOutput out) {
+        ShimExecutor.get().execute(() -> {
+            try (InputStream i = in) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = i.read(buf)) != -1) {
+                    out.append(buf, n);
+                }
+            } catch (IOException ignored) {
+            } finally {
+                out.close();
+            }
+        });
+    }
+
+    private synchronized View newView() {
+        views++;
+        return new View();
+    }
+
+    private void viewDestroyed(boolean force) {
+        boolean last;
+        synchronized (this) {
+            destroyedViews++;
+            last = destroyedViews == views;
+        }
+        if (last) {
+            // Nobody is interested any more
+            executions.remove(key, this);
+            FlatpakProcessImpl process = leader.getNow(null);
+            if (process != null) {
+                if (force) {
+                    process.destroyForcibly();
+                } else {
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * The output of a shared execution, buffered in full so that it can be read
+     * from the start by any number of readers.
+     */
+    private static final class SharedOutput {
+        private final List<byte[]> chunks = new ArrayList<>();
+        private boolean closed;
+
+        synchronized void append(byte[] buf, int n) {
+            chunks.add(Arrays.copyOf(buf, n));
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        /** Wakes the readers that are waiting for output, so that they notice being closed. */
+        synchronized void wakeReaders() {
+            notifyAll();
+        }
+
+        /**
+         * Waits until the given chunk is available.
+         *
+         * @return the chunk, or null if there will be no more chunks
+         * @throws IOException if the reader is closed while waiting
+         */
+        synchronized byte[] chunk(int index, SharedOutputInputStream reader) throws IOException {
+            while (index >= chunks.size() && !closed) {
+                if (reader.closed) {
+                    throw new IOException("Stream closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return index < chunks.size() ? chunks.get(index) : null;
+        }
+
+        synchronized int available(int index, int offset) {
+            int available = 0;
+            for (int i = index; i < chunks.size(); i++) {
+                available += chunks.get(i).length - (i == index ? offset : 0);
+            }
+            return available;
+        }
+    }
+
+    /**
+     * An independent reader of shared output.
+     */
+    private static final class SharedOutputInputStream extends InputStream {
+        private final SharedOutput output;
+        private int index;
+        private int offset;
+        private volatile boolean closed;
+
+        SharedOutputInputStream(SharedOutput output) {
+            this.output = output;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, b.length);
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                byte[] chunk = output.chunk(index, this);
+                if (chunk == null) {
+                    return -1;
+                }
+                if (offset < chunk.length) {
+                    int n = Math.min(len, chunk.length - offset);
+                    System.arraycopy(chunk, offset, b, off, n);
+                    offset += n;
+                    return n;
+                }
+                index++;
+                offset = 0;
+            }
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return output.available(index, offset);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            output.wakeReaders();
+        }
+    }
+
+    /**
+     * One caller's view of a shared execution.
+     */
+    final class View extends Process {
+        private final InputStream in = new SharedOutputInputStream(stdout);
+        private final InputStream err = key.redirectErrStream ? ProcessBuilder.NullInputStream.INSTANCE
+                : new SharedOutputInputStream(stderr);
+        private boolean destroyed;
+
+        private FlatpakProcessImpl leader() {
+            return leader.join();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return ProcessBuilder.NullOutputStream.INSTANCE;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return err;
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            return leader().waitFor();
+        }
+
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            return leader().waitFor(timeout, unit);
+        }
+
+        @Override
+        public int exitValue() {
+            return leader().exitValue();
+        }
+
+        @Override
+        public void destroy() {
+            destroy(false);
+        }
+
+        @Override
+        public Process destroyForcibly() {
+            destroy(true);
+            return this;
+        }
+
+        private void destroy(boolean force) {
+            synchronized (this) {
+                if (destroyed) {
+                    return;
+                }
+                destroyed = true;
+            }
+            try {
+                in.close();
+                err.close();
+            } catch (IOException ignored) {
+            }
+            viewDestroyed(force);
+        }
+
+        @Override
+        public boolean supportsNormalTermination() {
+            return true;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return leader().isAlive();
+        }
+
+        @Override
+        public long pid() {
+            return leader().pid();
+        }
+
+        @Override
+        public CompletableFuture<Process> onExit() {
+            return leader().onExit().thenApply(unused -> this);
+        }
+
+        @Override
+        public ProcessHandle toHandle() {
+            return leader().toHandle();
+        }
+
+        @Override
+        public String toString() {
+            return leader().toString();
+        }
+    }
+}
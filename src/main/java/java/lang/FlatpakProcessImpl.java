@@ -11,21 +11,26 @@ package java.lang;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import jdk.internal.misc.JavaIOFileDescriptorAccess;
 import jdk.internal.misc.SharedSecrets;
+import sun.nio.ch.NativeThread;
 
 /**
  * A java.lang.Process implementation to break out of the Flatpak sandbox and
@@ -40,86 +45,189 @@ final class FlatpakProcessImpl extends Process {
 
     private static final JavaIOFileDescriptorAccess fdAccess = SharedSecrets.getJavaIOFileDescriptorAccess();
 
+    /**
+     * The environment variable that requests a pseudo-terminal for the host
+     * process instead of pipes, whose value is the size as "COLSxROWS", or empty
+     * for 80x24. It is not passed on to the host command.
+     */
+    static final String TERMINAL = "FLATPAK_HOST_PTY";
+
+    /** Handles of the host processes that have been started and not yet exited. */
+    private static final Map<Integer, ProcessHandleImpl> liveProcesses = new ConcurrentHashMap<>();
+
     private final int pid;
     private final OutputStream stdin;
     private final InputStream stdout;
     private final InputStream stderr;
     private final ProcessHandleImpl processHandle;
+    private final CompletableFuture<Integer> completion;
+    private final HostUsage usage;
 
-    private int exitcode;
-    private boolean hasExited;
+    private final ExitStatus status = new ExitStatus();
 
-    private FlatpakProcessImpl(byte[] argv, int argc, byte[] envv, int envc, int[] fds, boolean redirectErrStream)
-            throws IOException {
-        pid = forkAndExecHostCommand(argv, argc, envv, envc, fds, redirectErrStream);
+    /**
+     * The exit status of the process, kept apart from the process so that the
+     * completion handler does not keep an abandoned process reachable. This is
+     * also the monitor that waiting for the process uses.
+     */
+    private static final class ExitStatus {
+        int exitcode;
+        volatile boolean hasExited;
+    }
+
+    private FlatpakProcessImpl(byte[] argv, int argc, byte[] envv, int envc, int[] fds, boolean redirectErrStream,
+            int[] terminal, HostUsage usage, SpawnTrace.Span span) throws IOException {
+        this.usage = usage;
+        long[] stages = span == null ? null : SpawnTrace.Span.newNativeStages();
+        pid = forkAndExecHostCommand(argv, argc, envv, envc, fds, redirectErrStream, terminal, stages);
+        if (span != null) {
+            span.nativeStages(stages);
+        }
         processHandle = ProcessHandleImpl.getInternal(pid);
+        liveProcesses.put(pid, processHandle);
 
         // Initialise streams for the process's standard file descriptors
         if (fds[0] == -1) {
             stdin = ProcessBuilder.NullOutputStream.INSTANCE;
         } else {
-            stdin = new ProcessPipeOutputStream(fds[0]);
+            stdin = new ProcessPipeOutputStream(fds[0], usage);
         }
         if (fds[1] == -1) {
             stdout = ProcessBuilder.NullInputStream.INSTANCE;
         } else {
-            stdout = new ProcessPipeInputStream(fds[1]);
+            stdout = new ProcessPipeInputStream(fds[1], usage, HostUsage.STDOUT, terminal != null);
         }
         if (fds[2] == -1) {
             stderr = ProcessBuilder.NullInputStream.INSTANCE;
         } else {
-            stderr = new ProcessPipeInputStream(fds[2]);
+            stderr = new ProcessPipeInputStream(fds[2], usage, HostUsage.STDERR, false);
         }
-        ProcessHandleImpl.completion(pid, true).handle((exitcode, throwable) -> {
-            synchronized (this) {
+        // The process reaper holds on to the completion handler until the process
+        // exits, so the handler must not refer to this process or its streams,
+        // otherwise abandoned processes and their pipes could not be reclaimed
+        int pid = this.pid;
+        ExitStatus status = this.status;
+        WeakReference<InputStream> stdoutRef = new WeakReference<>(stdout);
+        WeakReference<InputStream> stderrRef = new WeakReference<>(stderr);
+        WeakReference<OutputStream> stdinRef = new WeakReference<>(stdin);
+        LeakDetector.track(this, pid, () -> !status.hasExited);
+        completion = ProcessHandleImpl.completion(pid, true);
+        completion.handle((exitcode, throwable) -> {
+            liveProcesses.remove(pid);
+            usage.processExited();
+            if (span != null) {
+                span.stage(SpawnTrace.EXITED);
+            }
+            synchronized (status) {
                 if (exitcode == null) {
-                    this.exitcode = -1;
+                    status.exitcode = -1;
                 } else {
-                    this.exitcode = exitcode.intValue();
+                    status.exitcode = exitcode.intValue();
                 }
-                this.hasExited = true;
-                this.notifyAll();
+                status.hasExited = true;
+                status.notifyAll();
             }
 
-            if (stdout instanceof ProcessPipeInputStream) {
-                ((ProcessPipeInputStream) stdout).processExited();
-            }
-            if (stderr instanceof ProcessPipeInputStream) {
-                ((ProcessPipeInputStream) stderr).processExited();
-            }
-            if (stdin instanceof ProcessPipeOutputStream) {
-                ((ProcessPipeOutputStream) stdin).processExited();
-            }
+            // Capturing any output left in the pipes may take a while, so do it away
+            // from the reaper thread in order not to delay other exit notifications
+            ShimExecutor.get().execute(() -> {
+                InputStream out = stdoutRef.get();
+                if (out instanceof ProcessPipeInputStream) {
+                    ((ProcessPipeInputStream) out).processExited();
+                }
+                InputStream err = stderrRef.get();
+                if (err instanceof ProcessPipeInputStream) {
+                    ((ProcessPipeInputStream) err).processExited();
+                }
+                OutputStream in = stdinRef.get();
+                if (in instanceof ProcessPipeOutputStream) {
+                    ((ProcessPipeOutputStream) in).processExited();
+                }
+                usage.processFinished();
+            });
             return null;
         });
     }
 
+    /**
+     * Starts flatpak-spawn with the given arguments and environment. If the given
+     * terminal size is not null, standard output is connected to a
+     * pseudo-terminal of that many columns and rows instead of a pipe, and
+     * standard error is merged into the terminal unless either is redirected.
+     * Standard input remains a pipe, so that closing it signals end of file. If
+     * the given stages array is not null, the monotonic clock times at which the
+     * native stages of the start are reached are stored into it.
+     */
     private native int forkAndExecHostCommand(byte[] argv, int argc, byte[] envv, int envc, int[] fds,
-            boolean redirectErrStream) throws IOException;
+            boolean redirectErrStream, int[] terminal, long[] stages) throws IOException;
+
+    private static native int dupDescriptor(int fd) throws IOException;
+
+    private static native void preCloseDescriptor(int fd) throws IOException;
+
+    /**
+     * Moves everything from one file descriptor to the other until end of file,
+     * without the data passing through the Java heap, then closes both.
+     *
+     * @return the number of bytes moved
+     */
+    static native long transferDescriptors(int in, int out) throws IOException;
+
+    /**
+     * Copies a range of a regular file into another file descriptor without the
+     * data passing through the Java heap, then closes the other descriptor. The
+     * file's own position is not used, so the same file descriptor may be used
+     * concurrently.
+     *
+     * @return the number of bytes copied
+     */
+    static native long spliceFile(int in, long offset, long length, int out) throws IOException;
+
+    /**
+     * Takes over the file descriptor underlying the given stream so that its
+     * data can be moved natively. On success, the stream is closed and the caller
+     * owns the returned descriptor. Host process streams, file streams and socket
+     * streams are supported, as long as no data is buffered in the stream.
+     *
+     * @return a file descriptor that the caller must close, or -1 if the stream's
+     *         file descriptor could not be taken over and so was left alone
+     */
+    static int detachDescriptor(Closeable stream) throws IOException {
+        if (stream instanceof ProcessPipeInputStream) {
+            return ((ProcessPipeInputStream) stream).detach();
+        }
+        if (stream instanceof ProcessPipeOutputStream) {
+            return ((ProcessPipeOutputStream) stream).detach();
+        }
+        FileDescriptor descriptor = null;
+        if (stream instanceof FileInputStream) {
+            descriptor = ((FileInputStream) stream).getFD();
+        } else if (stream instanceof FileOutputStream) {
+            descriptor = ((FileOutputStream) stream).getFD();
+        }
+        if (descriptor == null || fdAccess.get(descriptor) == -1) {
+            return -1;
+        }
+        int fd = dupDescriptor(fdAccess.get(descriptor));
+        stream.close();
+        return fd;
+    }
 
     /**
      * For use only by {@link ProcessBuilder#start()}.
      */
     @SuppressWarnings("resource")
-    static Process start(String[] cmdarray, Map<String, String> environment, String dir,
+    static FlatpakProcessImpl start(String[] cmdarray, Map<String, String> environment, String dir,
             ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException {
 
+        HostUsage usage = new HostUsage(cmdarray[0]);
+
         // Try to honour ProcessBuilder contract by using user.dir if none is specified
         String workdir = System.getProperty("user.dir");
         if (dir != null && !dir.isEmpty()) {
             workdir = dir;
         }
-
-        // Generate argument block, which must be prefixed with the name of the helper
-        // executable that will launch the process on the process host and working
-        // directory that should be used on the sandbox host
-        List<String> argarray = new ArrayList<>();
-        argarray.add("flatpak-spawn");
-        argarray.add("--host");
-        // TODO Add working dir support to flatpak-spawn
-        // argarray.add(workdir);
-        argarray.addAll(Arrays.asList(cmdarray));
-        byte[] argv = toCStrings(argarray.toArray(new String[0]));
+        workdir = HostPathTranslator.argumentToHost(workdir);
 
         // Generate the environment block, to which we must add the $DISPLAY variable
         // and the $DBUS_SESSION_BUS_ADDRESS variable if it exists because it must be
@@ -131,10 +239,41 @@ final class FlatpakProcessImpl extends Process {
         }
         if (environment != null) {
             for (Map.Entry<String, String> entry : environment.entrySet()) {
+                if (HostScheduling.isAttribute(entry.getKey()) || TERMINAL.equals(entry.getKey())) {
+                    continue;
+                }
                 envarray.add(entry.getKey() + "=" + entry.getValue());
             }
         }
+
+        // Huge command lines or environments are moved into a spool file that the
+        // command is rebuilt from on the sandbox host
+        List<String> command = new ArrayList<>(cmdarray.length);
+        for (String arg : cmdarray) {
+            command.add(HostPathTranslator.argumentToHost(arg));
+        }
+        Path spool = ArgumentSpool.spoolIfNeeded(command, envarray);
+
+        // Generate argument block, which must be prefixed with the name of the helper
+        // executable that will launch the process on the process host and working
+        // directory that should be used on the sandbox host
+        List<String> argarray = new ArrayList<>();
+        argarray.add("flatpak-spawn");
+        argarray.add("--host");
+        // Have the host side tear down the command if flatpak-spawn goes away, since it
+        // cannot forward SIGKILL to the host
+        argarray.add("--watch-bus");
+        argarray.add("--directory=" + workdir);
+        argarray.addAll(HostScheduling.commandPrefix(environment));
+        argarray.addAll(command);
+        int[] terminal = terminalSize(environment);
+        String[] execarray = ProcessImplFactory.finalCommand(true, argarray.toArray(new String[0]));
+        byte[] argv = toCStrings(execarray);
         byte[] envv = toCStrings(envarray.toArray(new String[0]));
+        SpawnTrace.Span span = SpawnTrace.current();
+        if (span != null) {
+            span.stage(SpawnTrace.SERIALIZED);
+        }
 
         FileInputStream f0 = null;
         FileOutputStream f1 = null;
@@ -175,7 +314,17 @@ final class FlatpakProcessImpl extends Process {
                 }
             }
 
-            return new FlatpakProcessImpl(argv, argarray.size(), envv, envarray.size(), fds, redirectErrStream);
+            FlatpakProcessImpl process = new FlatpakProcessImpl(argv, execarray.length, envv, envarray.size(), fds,
+                    redirectErrStream, terminal, usage, span);
+            if (spool != null) {
+                process.completion.whenComplete((unusedExitcode, unusedThrowable) -> deleteSpool(spool));
+            }
+            return process;
+        } catch (IOException | RuntimeException e) {
+            if (spool != null) {
+                deleteSpool(spool);
+            }
+            throw e;
         } finally {
             if (f0 != null) {
                 f0.close();
@@ -189,6 +338,48 @@ final class FlatpakProcessImpl extends Process {
         }
     }
 
+    /**
+     * Parses the terminal size requested by the given environment.
+     *
+     * @return the number of columns and rows, or null if no terminal is requested
+     * @throws IOException if the requested size is invalid
+     */
+    private static int[] terminalSize(Map<String, String> environment) throws IOException {
+        String value = environment == null ? null : environment.get(TERMINAL);
+        if (value == null) {
+            return null;
+        }
+        if (value.isEmpty()) {
+            return new int[] { 80, 24 };
+        }
+        int x = value.indexOf('x');
+        try {
+            int cols = Integer.parseInt(value.substring(0, Math.max(x, 0)));
+            int rows = Integer.parseInt(value.substring(x + 1));
+            if (cols > 0 && cols <= 0xffff && rows > 0 && rows <= 0xffff) {
+                return new int[] { cols, rows };
+            }
+        } catch (NumberFormatException e) {
+            // Fall through
+        }
+        throw new IOException("Invalid value for " + TERMINAL + ": " + value);
+    }
+
+    private static void deleteSpool(Path spool) {
+        try {
+            Files.deleteIfExists(spool);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Returns the future that is completed by the process reaper thread when the
+     * process exits.
+     */
+    CompletableFuture<Integer> completion() {
+        return completion;
+    }
+
     @Override
     public CompletableFuture<Process> onExit() {
         return ProcessHandleImpl.completion(pid, false).handleAsync((unusedExitStatus, unusedThrowable) -> {
@@ -209,6 +400,20 @@ final class FlatpakProcessImpl extends Process {
         });
     }
 
+    /**
+     * Returns a snapshot of the resource usage of the process.
+     */
+    Map<String, Long> usage() {
+        return usage.snapshot();
+    }
+
+    /**
+     * Returns the live resource usage accounting of the process.
+     */
+    HostUsage hostUsage() {
+        return usage;
+    }
+
     @Override
     public ProcessHandle toHandle() {
         return processHandle;
@@ -230,9 +435,32 @@ final class FlatpakProcessImpl extends Process {
         return this;
     }
 
+    /**
+     * Signals all the host processes that have been started by the shim and have
+     * not yet exited.
+     *
+     * @return the number of processes that were signalled
+     */
+    static int destroyAll(boolean force) {
+        int count = 0;
+        for (ProcessHandleImpl handle : liveProcesses.values()) {
+            if (handle.destroyProcess(force)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The signal is delivered to the flatpak-spawn process in the sandbox. When
+     * not forced, flatpak-spawn forwards it to the process group of the command on
+     * the host, so the whole tree of processes started by the command is signalled.
+     * When forced, flatpak-spawn is killed outright and the host side then kills
+     * the command because it is started with "--watch-bus".
+     */
     private void destroy(boolean force) {
-        synchronized (this) {
-            if (!hasExited)
+        synchronized (status) {
+            if (!status.hasExited)
                 processHandle.destroyProcess(force);
         }
         try {
@@ -250,19 +478,52 @@ final class FlatpakProcessImpl extends Process {
     }
 
     @Override
-    public synchronized int waitFor() throws InterruptedException {
-        while (!hasExited) {
-            wait();
+    public int waitFor() throws InterruptedException {
+        synchronized (status) {
+            while (!status.hasExited) {
+                status.wait();
+            }
+            return status.exitcode;
         }
-        return exitcode;
     }
 
     @Override
-    public synchronized int exitValue() {
-        if (!hasExited) {
-            throw new IllegalThreadStateException("process hasn't exited");
+    public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        synchronized (status) {
+            if (status.hasExited) {
+                return true;
+            }
+            if (timeout <= 0) {
+                return false;
+            }
+            // The completion handler notifies as soon as the process exits, so there is
+            // no need to poll
+            long deadline = System.nanoTime() + remainingNanos;
+            do {
+                TimeUnit.NANOSECONDS.timedWait(status, remainingNanos);
+                if (status.hasExited) {
+                    return true;
+                }
+                remainingNanos = deadline - System.nanoTime();
+            } while (remainingNanos > 0);
+            return status.hasExited;
+        }
+    }
+
+    @Override
+    public boolean isAlive() {
+        return !status.hasExited;
+    }
+
+    @Override
+    public int exitValue() {
+        synchronized (status) {
+            if (!status.hasExited) {
+                throw new IllegalThreadStateException("process hasn't exited");
+            }
+            return status.exitcode;
         }
-        return exitcode;
     }
 
     @Override
@@ -289,7 +550,7 @@ final class FlatpakProcessImpl extends Process {
     @Override
     public String toString() {
         return new StringBuilder("Process[pid=").append(pid).append(", exitValue=")
-                .append(hasExited ? exitcode : "\"not exited\"").append("]").toString();
+                .append(status.hasExited ? status.exitcode : "\"not exited\"").append("]").toString();
     }
 
     /**
@@ -314,14 +575,24 @@ final class FlatpakProcessImpl extends Process {
     }
 
     /**
-     * Creates a new descriptor for the given ID.
+     * Creates a new descriptor for the given ID, which is closed when the
+     * descriptor becomes unreachable if it has not been closed already.
      */
     private static FileDescriptor newFileDescriptor(int fd) {
         FileDescriptor descriptor = new FileDescriptor();
         fdAccess.set(descriptor, fd);
+        fdAccess.registerCleanup(descriptor);
         return descriptor;
     }
 
+    /**
+     * Creates a stream that reads from and takes ownership of the given file
+     * descriptor.
+     */
+    static InputStream descriptorInputStream(int fd) {
+        return new FileInputStream(newFileDescriptor(fd));
+    }
+
     /**
      * A buffered input stream for a subprocess pipe file descriptor that allows the
      * underlying file descriptor to be reclaimed when the process exits, via the
@@ -336,34 +607,117 @@ final class FlatpakProcessImpl extends Process {
     private static class ProcessPipeInputStream extends BufferedInputStream {
         private final Object closeLock = new Object();
 
-        ProcessPipeInputStream(int fd) {
-            super(new PipeInputStream(newFileDescriptor(fd)));
+        private final boolean terminal;
+
+        /** The native thread that is reading from the pipe, or zero. */
+        private final Object readerLock = new Object();
+        private long reader;
+
+        ProcessPipeInputStream(int fd, HostUsage usage, int stream, boolean terminal) {
+            // The real buffer is taken from the pool on first use
+            super(new CountingPipeInputStream(newFileDescriptor(fd), usage, stream, terminal), 1);
+            this.terminal = terminal;
+        }
+
+        private void acquireBuffer() {
+            byte[] b = buf;
+            if (b != null && b.length < BufferPool.BUFFER_SIZE) {
+                byte[] pooled = BufferPool.acquire();
+                System.arraycopy(b, 0, pooled, 0, count);
+                buf = pooled;
+            }
+        }
+
+        private void beginRead() {
+            synchronized (readerLock) {
+                reader = NativeThread.current();
+            }
+        }
+
+        private void endRead() {
+            synchronized (readerLock) {
+                reader = 0;
+            }
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            acquireBuffer();
+            beginRead();
+            try {
+                return super.read();
+            } finally {
+                endRead();
+            }
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            // Big reads bypass the buffer
+            if (len < BufferPool.BUFFER_SIZE) {
+                acquireBuffer();
+            }
+            beginRead();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                endRead();
+            }
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            acquireBuffer();
+            return super.skip(n);
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            acquireBuffer();
+            super.mark(readlimit);
         }
 
-        private static byte[] drainInputStream(InputStream in) throws IOException {
-            int n = 0;
-            int j;
-            byte[] a = null;
-            while ((j = in.available()) > 0) {
-                a = (a == null) ? new byte[j] : Arrays.copyOf(a, n + j);
-                n += in.read(a, n, j);
+        /**
+         * Makes a read that is blocked waiting for the process to write return end
+         * of file, because closing the pipe alone does not wake it.
+         */
+        private void wakeReader() {
+            synchronized (readerLock) {
+                InputStream in = this.in;
+                if (reader == 0 || !(in instanceof FileInputStream)) {
+                    return;
+                }
+                try {
+                    int fd = fdAccess.get(((FileInputStream) in).getFD());
+                    if (fd != -1) {
+                        preCloseDescriptor(fd);
+                        NativeThread.signal(reader);
+                    }
+                } catch (IOException ignored) {
+                }
             }
-            return (a == null || n == a.length) ? a : Arrays.copyOf(a, n);
         }
 
-        /** Called by the process reaper thread when the process exits. */
+        /** Called on a shim worker thread after the process exits. */
         synchronized void processExited() {
             synchronized (closeLock) {
                 try {
                     InputStream in = this.in;
                     // this stream is closed if and only if: in == null
                     if (in != null) {
-                        byte[] stragglers = drainInputStream(in);
+                        InputStream stragglers = StragglerBuffer.drain(in);
                         in.close();
                         if (stragglers == null) {
                             this.in = ProcessBuilder.NullInputStream.INSTANCE;
                         } else {
-                            this.in = new ByteArrayInputStream(stragglers);
+                            this.in = stragglers;
+                        }
+                        // Nothing more will be read from the pipe, so the buffer can go back to
+                        // the pool unless it holds data that has yet to be read
+                        if (pos >= count && markpos < 0 && buf != null) {
+                            BufferPool.release(buf);
+                            buf = new byte[1];
+                            pos = count = 0;
                         }
                     }
                 } catch (IOException ignored) {
@@ -371,13 +725,47 @@ final class FlatpakProcessImpl extends Process {
             }
         }
 
+        /** Called when the pipe is handed over to a native transfer. */
+        synchronized int detach() throws IOException {
+            synchronized (closeLock) {
+                InputStream in = this.in;
+                if (in == null) {
+                    throw new IOException("Stream closed");
+                }
+                // Once the process has exited, the pipe will have been replaced by its
+                // stragglers, and anything already buffered would be lost
+                // Terminals cannot be spliced, and do not signal end of file in a way
+                // that the native transfer understands
+                if (terminal || !(in instanceof FileInputStream) || count > pos) {
+                    return -1;
+                }
+                int fd = dupDescriptor(fdAccess.get(((FileInputStream) in).getFD()));
+                byte[] b = buf;
+                super.close();
+                BufferPool.release(b);
+                return fd;
+            }
+        }
+
         @Override
         public void close() throws IOException {
             // BufferedInputStream#close() is not synchronized unlike most other
             // methods. Synchronizing helps avoid race with processExited().
+            byte[] b;
             synchronized (closeLock) {
+                b = buf;
+                wakeReader();
                 super.close();
             }
+            if (b != null) {
+                // A read may still be filling the buffer, and returns once the pipe has been
+                // closed, so only give the buffer back once it has let go of the stream
+                ShimExecutor.get().execute(() -> {
+                    synchronized (this) {
+                        BufferPool.release(b);
+                    }
+                });
+            }
         }
     }
 
@@ -389,11 +777,54 @@ final class FlatpakProcessImpl extends Process {
      * This class is taken more or less as-is from the JDK 9 implementation.
      */
     private static class ProcessPipeOutputStream extends BufferedOutputStream {
-        ProcessPipeOutputStream(int fd) {
-            super(new FileOutputStream(newFileDescriptor(fd)));
+        ProcessPipeOutputStream(int fd, HostUsage usage) {
+            // The real buffer is taken from the pool on first use
+            super(new CountingPipeOutputStream(newFileDescriptor(fd), usage), 1);
+        }
+
+        private void acquireBuffer() {
+            if (buf.length < BufferPool.BUFFER_SIZE) {
+                byte[] pooled = BufferPool.acquire();
+                System.arraycopy(buf, 0, pooled, 0, count);
+                buf = pooled;
+            }
+        }
+
+        private void releaseBuffer() {
+            if (buf.length == BufferPool.BUFFER_SIZE) {
+                BufferPool.release(buf);
+                buf = new byte[1];
+                count = 0;
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            acquireBuffer();
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            // Big writes bypass the buffer
+            if (len < BufferPool.BUFFER_SIZE) {
+                acquireBuffer();
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    releaseBuffer();
+                }
+            }
         }
 
-        /** Called by the process reaper thread when the process exits. */
+        /** Called on a shim worker thread after the process exits. */
         synchronized void processExited() {
             if (this.out != null) {
                 try {
@@ -401,7 +832,99 @@ final class FlatpakProcessImpl extends Process {
                 } catch (IOException ignored) {
                 }
                 this.out = ProcessBuilder.NullOutputStream.INSTANCE;
+                // Anything still buffered could only ever be written to the null stream
+                releaseBuffer();
+            }
+        }
+
+        /** Called when the pipe is handed over to a native transfer. */
+        synchronized int detach() throws IOException {
+            if (!(this.out instanceof FileOutputStream)) {
+                return -1;
+            }
+            int current = fdAccess.get(((FileOutputStream) this.out).getFD());
+            if (current == -1) {
+                throw new IOException("Stream closed");
+            }
+            flush();
+            int fd = dupDescriptor(current);
+            close();
+            return fd;
+        }
+    }
+
+    /**
+     * A pipe input stream that accounts for the bytes read from it.
+     */
+    private static final class CountingPipeInputStream extends PipeInputStream {
+        private final HostUsage usage;
+        private final int stream;
+        private final boolean terminal;
+
+        CountingPipeInputStream(FileDescriptor fd, HostUsage usage, int stream, boolean terminal) {
+            super(fd);
+            this.usage = usage;
+            this.stream = stream;
+            this.terminal = terminal;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (IOException e) {
+                // Reading the master side of a terminal fails with EIO instead of
+                // returning end of file once the process has closed the other side
+                if (terminal && fdAccess.get(getFD()) != -1) {
+                    return -1;
+                }
+                throw e;
             }
+            if (n > 0) {
+                usage.transferred(stream, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A pipe output stream that accounts for the bytes written to it.
+     */
+    private static final class CountingPipeOutputStream extends FileOutputStream {
+        private final HostUsage usage;
+
+        CountingPipeOutputStream(FileDescriptor fd, HostUsage usage) {
+            super(fd);
+            this.usage = usage;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            usage.transferred(HostUsage.STDIN, 1);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            usage.transferred(HostUsage.STDIN, len);
         }
     }
 }
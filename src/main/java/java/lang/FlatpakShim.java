@@ -0,0 +1,289 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * Extensions to the standard process API that are only available when the
+ * Flatpak shim is patched into the java.base module. Programs that want to use
+ * these must be compiled against the shim, for example with
+ * "--patch-module=java.base=/path/to/flatpak-dev-shim.jar".
+ */
+public final class FlatpakShim {
+
+    private FlatpakShim() {
+    }
+
+    /**
+     * Returns a publisher of the bytes written by the given process to its
+     * standard output stream. The stream is only read when the subscriber signals
+     * demand, so a slow subscriber will cause the process to block on writing
+     * instead of its output being buffered. Signals are delivered on the shim's
+     * own worker threads.
+     *
+     * @param process a process whose output stream has not yet been read from
+     * @return a publisher that permits exactly one subscriber
+     */
+    public static Flow.Publisher<ByteBuffer> stdoutPublisher(Process process) {
+        return stdoutPublisher(process, ShimExecutor.get());
+    }
+
+    /**
+     * Returns a publisher of the bytes written by the given process to its
+     * standard output stream, whose signals are delivered using the given
+     * executor.
+     *
+     * @param process a process whose output stream has not yet been read from
+     * @param executor the executor used to read the stream and deliver signals
+     * @return a publisher that permits exactly one subscriber
+     */
+    public static Flow.Publisher<ByteBuffer> stdoutPublisher(Process process, Executor executor) {
+        return new ProcessPipePublisher(process.getInputStream(), executor);
+    }
+
+    /**
+     * Returns a publisher of the bytes written by the given process to its
+     * standard error stream. The stream is only read when the subscriber signals
+     * demand, so a slow subscriber will cause the process to block on writing
+     * instead of its output being buffered. Signals are delivered on the shim's
+     * own worker threads.
+     *
+     * @param process a process whose error stream has not yet been read from
+     * @return a publisher that permits exactly one subscriber
+     */
+    public static Flow.Publisher<ByteBuffer> stderrPublisher(Process process) {
+        return stderrPublisher(process, ShimExecutor.get());
+    }
+
+    /**
+     * Returns a publisher of the bytes written by the given process to its
+     * standard error stream, whose signals are delivered using the given
+     * executor.
+     *
+     * @param process a process whose error stream has not yet been read from
+     * @param executor the executor used to read the stream and deliver signals
+     * @return a publisher that permits exactly one subscriber
+     */
+    public static Flow.Publisher<ByteBuffer> stderrPublisher(Process process, Executor executor) {
+        return new ProcessPipePublisher(process.getErrorStream(), executor);
+    }
+
+    /**
+     * Starts a process as described by the given builder, except that instead of
+     * being redirected as configured, the process's standard output is captured
+     * into anonymous memory-backed storage. The builder is not modified. Use
+     * {@link #capturedOutput(Process)} to obtain the output once the process has
+     * exited. If the builder's standard input is a pipe, it is closed
+     * immediately.
+     *
+     * @param builder describes the process to start
+     * @return the new process
+     * @throws IOException if the process could not be started
+     */
+    public static Process startCapturingOutput(ProcessBuilder builder) throws IOException {
+        return CapturingProcess.start(builder);
+    }
+
+    /**
+     * Waits for a process that was started by
+     * {@link #startCapturingOutput(ProcessBuilder)} to exit, and then returns
+     * everything it wrote to its standard output as a read-only buffer that is
+     * mapped directly onto the capture storage.
+     *
+     * @param process a process started by
+     *            {@link #startCapturingOutput(ProcessBuilder)}
+     * @return a read-only buffer over the captured output
+     * @throws IOException if the captured output could not be mapped
+     * @throws InterruptedException if interrupted while waiting for the process
+     *             to exit
+     * @throws IllegalArgumentException if the process's output is not being
+     *             captured
+     */
+    public static ByteBuffer capturedOutput(Process process) throws IOException, InterruptedException {
+        if (!(process instanceof CapturingProcess)) {
+            throw new IllegalArgumentException("Output of process is not being captured");
+        }
+        return ((CapturingProcess) process).capturedOutput();
+    }
+
+    /**
+     * Moves everything that can be read from the source stream into the sink
+     * stream, until the end of the source is reached, and then closes both
+     * streams. When both streams are backed by file descriptors, for example the
+     * streams of processes started on the sandbox host, {@link java.io.FileInputStream}
+     * and {@link java.io.FileOutputStream} or socket streams, the data is moved by
+     * the kernel without being copied through the Java heap. Data that is
+     * already buffered in a stream cannot be moved this way, so it is best to
+     * connect streams before reading from or writing to them.
+     *
+     * <p>
+     * For example, to pipe the output of one process into another:
+     *
+     * <pre>
+     * FlatpakShim.connect(p1.getInputStream(), p2.getOutputStream());
+     * </pre>
+     *
+     * @param source the stream to read from, which must not be used again by the
+     *            caller
+     * @param sink the stream to write to, which must not be used again by the
+     *            caller
+     * @return a future that completes with the number of bytes moved
+     */
+    public static CompletableFuture<Long> connect(InputStream source, OutputStream sink) {
+        return PipeConnector.connect(source, sink);
+    }
+
+    /**
+     * Destroys every process that the shim has started on the sandbox host and
+     * that has not yet exited, including any processes they have started in turn.
+     * This is useful for tearing things down quickly when shutting down.
+     *
+     * @param force whether the processes should be killed forcibly, as with
+     *            {@link Process#destroyForcibly()}, or requested to terminate, as
+     *            with {@link Process#destroy()}
+     * @return the number of host processes that were signalled
+     */
+    public static int destroyAllHostProcesses(boolean force) {
+        return FlatpakProcessImpl.destroyAll(force);
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the shim's admission control for
+     * host processes, which can be used to tune the
+     * "flatpak.hostcommandrunner.maxConcurrentSpawns" and
+     * "flatpak.hostcommandrunner.maxLiveProcesses" limits. The keys are:
+     * "maxConcurrentSpawns", "maxLiveProcesses" (the configured limits, zero
+     * meaning unlimited), "spawning", "live", "queued" (the current state),
+     * "peakQueued", "admitted", "delayed" (the number of admissions that had to
+     * wait), "totalWaitNanos" and "maxWaitNanos". Statistics are only gathered
+     * when at least one limit is configured.
+     *
+     * @return an ordered map of statistic names to values
+     */
+    public static Map<String, Long> hostAdmissionStatistics() {
+        return HostAdmission.statistics();
+    }
+
+    /**
+     * Returns a snapshot of the resource usage of a process that was started on
+     * the sandbox host. The keys are: "wallNanos" (the time between the process
+     * being started and exiting, or -1 if it is still running), "stdinBytes",
+     * "stdoutBytes" and "stderrBytes" (the number of bytes that have passed
+     * through each of the process's pipes).
+     *
+     * @param process a process that was started on the sandbox host
+     * @return an ordered map of usage names to values
+     * @throws IllegalArgumentException if the process was not started on the
+     *             sandbox host
+     */
+    public static Map<String, Long> hostProcessUsage(Process process) {
+        if (!(process instanceof FlatpakProcessImpl)) {
+            throw new IllegalArgumentException("Process was not started on the sandbox host");
+        }
+        return ((FlatpakProcessImpl) process).usage();
+    }
+
+    /**
+     * Returns the aggregate resource usage of all processes that have been
+     * started on the sandbox host and have exited, keyed by command name. The
+     * keys of the usage of each command are: "processes", "wallNanos",
+     * "stdinBytes", "stdoutBytes" and "stderrBytes".
+     *
+     * @return a map of command names to ordered maps of usage names to values
+     */
+    public static Map<String, Map<String, Long>> hostUsageByCommand() {
+        return HostUsage.totals();
+    }
+
+    /**
+     * Writes the contents of the given file to the standard input of each of the
+     * given processes, and then closes their standard input streams. Processes
+     * started on the sandbox host are fed directly from the file by the kernel,
+     * so the data is not copied once per process, and each process is fed
+     * independently so a slow process does not hold up the others.
+     *
+     * @param file the file to feed to the processes
+     * @param processes the processes to feed, whose standard input streams must
+     *            not be used again by the caller
+     * @return a future that completes when all the processes have been fed
+     */
+    public static CompletableFuture<Void> feedInput(Path file, Process... processes) {
+        return InputFanOut.feed(file, processes);
+    }
+
+    /**
+     * Writes the remaining contents of the given buffer to the standard input of
+     * each of the given processes, and then closes their standard input streams.
+     * The buffer is copied once into anonymous memory-backed storage, which the
+     * processes are then fed from as with {@link #feedInput(Path, Process...)}.
+     * The buffer's position is not changed.
+     *
+     * @param data the data to feed to the processes
+     * @param processes the processes to feed, whose standard input streams must
+     *            not be used again by the caller
+     * @return a future that completes when all the processes have been fed
+     */
+    public static CompletableFuture<Void> feedInput(ByteBuffer data, Process... processes) {
+        return InputFanOut.feed(data, processes);
+    }
+
+    /**
+     * Returns the traces of the most recent process starts, oldest first, one per
+     * line. Each trace gives the time at which each stage of starting the process
+     * was reached, relative to the time the process was requested. Tracing must
+     * be enabled with the "flatpak.hostcommandrunner.trace" system property,
+     * otherwise the result is empty.
+     *
+     * @return the recent traces as text
+     */
+    public static String spawnTrace() {
+        return SpawnTrace.dump();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the pool of buffers used by the
+     * standard streams of host processes, which can be used to tune the
+     * "flatpak.hostcommandrunner.bufferPoolSize" limit. The keys are:
+     * "bufferSize", "maxIdle" (the configured limit), "idle" (the number of
+     * buffers currently in the pool), "acquired" (the number of times a stream
+     * needed a buffer), "allocated" (the number of those that the pool could not
+     * satisfy), "released" and "discarded" (the number of buffers given back when
+     * the pool was full).
+     *
+     * @return an ordered map of statistic names to values
+     */
+    public static Map<String, Long> bufferPoolStatistics() {
+        return BufferPool.statistics();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the detection of abandoned host
+     * processes, which is enabled by the
+     * "flatpak.hostcommandrunner.leakDetectionSampling" system property. The keys
+     * are: "sampling" (the configured sampling interval), "tracked" (the number of
+     * processes that were sampled), "reclaimed" (the number of those that were
+     * garbage collected) and "abandoned" (the number of those that were still
+     * running when they were garbage collected).
+     *
+     * @return an ordered map of statistic names to values
+     */
+    public static Map<String, Long> leakDetectorStatistics() {
+        return LeakDetector.statistics();
+    }
+}
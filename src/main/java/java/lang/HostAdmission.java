@@ -0,0 +1,219 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many processes may be in the middle of being started on the
+ * sandbox host, and how many may be running there, at once. Each spawn on the
+ * host is a round trip through the Flatpak portal on the session bus, so a big
+ * burst of them can slow down everything on the host.
+ *
+ * The limits are given by the "flatpak.hostcommandrunner.maxConcurrentSpawns"
+ * and "flatpak.hostcommandrunner.maxLiveProcesses" system properties, and are
+ * unlimited by default, in which case admission costs nothing. Callers that
+ * cannot be admitted immediately are queued, and whenever capacity frees up
+ * it goes to the waiting caller thread that currently has the fewest live host
+ * processes, in arrival order among equals. This stops one busy thread from
+ * starving everyone else.
+ */
+final class HostAdmission {
+
+    private static final int MAX_SPAWNS = Integer.getInteger("flatpak.hostcommandrunner.maxConcurrentSpawns", 0);
+    private static final int MAX_LIVE = Integer.getInteger("flatpak.hostcommandrunner.maxLiveProcesses", 0);
+
+    static final boolean ENABLED = MAX_SPAWNS > 0 || MAX_LIVE > 0;
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition changed = lock.newCondition();
+    private static final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+    private static final Map<Long, Integer> liveByCaller = new HashMap<>();
+
+    private static int spawning;
+    private static int live;
+    private static long admitted;
+    private static long delayed;
+    private static long peakQueued;
+    private static long totalWaitNanos;
+    private static long maxWaitNanos;
+
+    private HostAdmission() {
+    }
+
+    /**
+     * Permission for one caller to start one host process.
+     */
+    static final class Ticket {
+        private final long caller;
+        private final long enqueued;
+        private boolean granted;
+        private boolean released;
+
+        private Ticket(long caller, long enqueued) {
+            this.caller = caller;
+            this.enqueued = enqueued;
+        }
+
+        /**
+         * Called once the host process has been started, frees up the spawn slot.
+         * The process slot is freed when the given completion completes.
+         */
+        void started(CompletableFuture<?> completion) {
+            lock.lock();
+            try {
+                spawning--;
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+            completion.whenComplete((unusedResult, unusedThrowable) -> release());
+        }
+
+        /**
+         * Called if the host process could not be started, frees up all slots.
+         */
+        void failed() {
+            lock.lock();
+            try {
+                spawning--;
+                releaseLive();
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                releaseLive();
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void releaseLive() {
+            if (!released) {
+                released = true;
+                live--;
+                liveByCaller.computeIfPresent(caller, (k, v) -> v == 1 ? null : v - 1);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the calling thread is permitted to start a host process.
+     *
+     * @return a ticket that must be told whether the process started
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    static Ticket acquire() throws InterruptedIOException {
+        Ticket ticket = new Ticket(Thread.currentThread().getId(), System.nanoTime());
+        lock.lock();
+        try {
+            if (queue.isEmpty() && hasCapacity()) {
+                grant(ticket);
+                return ticket;
+            }
+            queue.add(ticket);
+            delayed++;
+            peakQueued = Math.max(peakQueued, queue.size());
+            while (!ticket.granted) {
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    if (ticket.granted) {
+                        ticket.failed();
+                    } else {
+                        queue.remove(ticket);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to start host process");
+                }
+            }
+            long waited = System.nanoTime() - ticket.enqueued;
+            totalWaitNanos += waited;
+            maxWaitNanos = Math.max(maxWaitNanos, waited);
+            return ticket;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean hasCapacity() {
+        return (MAX_SPAWNS <= 0 || spawning < MAX_SPAWNS) && (MAX_LIVE <= 0 || live < MAX_LIVE);
+    }
+
+    private static void grant(Ticket ticket) {
+        ticket.granted = true;
+        spawning++;
+        live++;
+        admitted++;
+        liveByCaller.merge(ticket.caller, 1, Integer::sum);
+    }
+
+    /**
+     * Hands out any free capacity to waiting callers, fewest live processes first.
+     */
+    private static void dispatch() {
+        boolean granted = false;
+        while (!queue.isEmpty() && hasCapacity()) {
+            Ticket best = null;
+            int bestLive = Integer.MAX_VALUE;
+            for (Iterator<Ticket> it = queue.iterator(); it.hasNext();) {
+                Ticket t = it.next();
+                int callerLive = liveByCaller.getOrDefault(t.caller, 0);
+                if (callerLive < bestLive) {
+                    best = t;
+                    bestLive = callerLive;
+                }
+            }
+            queue.remove(best);
+            grant(best);
+            granted = true;
+        }
+        if (granted) {
+            changed.signalAll();
+        }
+    }
+
+    /**
+     * Returns a snapshot of how saturated the host is.
+     */
+    static Map<String, Long> statistics() {
+        lock.lock();
+        try {
+            Map<String, Long> stats = new LinkedHashMap<>();
+            stats.put("maxConcurrentSpawns", (long) MAX_SPAWNS);
+            stats.put("maxLiveProcesses", (long) MAX_LIVE);
+            stats.put("spawning", (long) spawning);
+            stats.put("live", (long) live);
+            stats.put("queued", (long) queue.size());
+            stats.put("peakQueued", peakQueued);
+            stats.put("admitted", admitted);
+            stats.put("delayed", delayed);
+            stats.put("totalWaitNanos", totalWaitNanos);
+            stats.put("maxWaitNanos", maxWaitNanos);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
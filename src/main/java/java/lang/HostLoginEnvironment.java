@@ -0,0 +1,120 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A snapshot of the environment of a login shell on the sandbox host, taken
+ * once by running "env -0" through a login shell, so that host commands can be
+ * given the host's login environment without every one of them having to be
+ * run through a login shell that sources the profile scripts again.
+ *
+ * Merging the snapshot into the environment of host commands is enabled by
+ * setting the "flatpak.hostcommandrunner.hostLoginEnvironment" system property
+ * to true. A variable from the snapshot replaces the variable of the same name
+ * in the environment of a host command unless the caller changed that variable
+ * from the value the JVM itself was started with, so for example a host command
+ * gets the host's PATH instead of the sandbox's PATH, but a PATH that the
+ * caller set explicitly is left alone.
+ */
+final class HostLoginEnvironment {
+
+    static final boolean ENABLED = Boolean.getBoolean("flatpak.hostcommandrunner.hostLoginEnvironment");
+
+    /** Variables that describe the shell that took the snapshot rather than the login. */
+    private static final Set<String> SHELL_VARIABLES = Set.of("_", "SHLVL", "PWD", "OLDPWD");
+
+    private HostLoginEnvironment() {
+    }
+
+    /** Lazily initialised so that the snapshot is only taken when needed. */
+    private static final class Holder {
+        static final Map<String, String> snapshot = capture();
+    }
+
+    private static Map<String, String> capture() {
+        String[] command = { "sh", "-l", "-c", "env -0" };
+        ProcessBuilder.Redirect[] redirects = { ProcessBuilder.Redirect.PIPE, ProcessBuilder.Redirect.PIPE,
+                ProcessBuilder.Redirect.DISCARD };
+        try {
+            // Started directly because this must not be probed, coalesced or admitted
+            FlatpakProcessImpl process = FlatpakProcessImpl.start(command, null, null, redirects, false);
+            process.getOutputStream().close();
+            byte[] output;
+            try (InputStream in = process.getInputStream()) {
+                output = in.readAllBytes();
+            }
+            if (process.waitFor() != 0) {
+                ShimLog.warning("hostLoginEnvironmentUnavailable", "exitValue", process.exitValue());
+                return null;
+            }
+            Map<String, String> snapshot = new HashMap<>();
+            int start = 0;
+            for (int i = 0; i < output.length; i++) {
+                if (output[i] == 0) {
+                    String entry = new String(output, start, i - start);
+                    int eq = entry.indexOf('=');
+                    if (eq > 0 && !SHELL_VARIABLES.contains(entry.substring(0, eq))) {
+                        snapshot.put(entry.substring(0, eq), entry.substring(eq + 1));
+                    }
+                    start = i + 1;
+                }
+            }
+            return Collections.unmodifiableMap(snapshot);
+        } catch (IOException e) {
+            ShimLog.warning("hostLoginEnvironmentUnavailable", "error", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Returns the snapshot of the host's login environment, taking it if it has
+     * not yet been taken.
+     *
+     * @return the snapshot, or null if it is not enabled or could not be taken
+     */
+    static Map<String, String> get() {
+        return ENABLED ? Holder.snapshot : null;
+    }
+
+    /**
+     * Merges the snapshot into the given environment of a host command.
+     *
+     * @return the merged environment, or the given environment if there is no
+     *         snapshot
+     */
+    static Map<String, String> merge(Map<String, String> environment) {
+        Map<String, String> snapshot = get();
+        if (snapshot == null) {
+            return environment;
+        }
+        Map<String, String> merged = new HashMap<>(snapshot);
+        if (environment != null) {
+            for (Map.Entry<String, String> entry : environment.entrySet()) {
+                String name = entry.getKey();
+                // Inherited sandbox values are replaced, explicitly set values are kept
+                if (!snapshot.containsKey(name) || !Objects.equals(entry.getValue(), System.getenv(name))) {
+                    merged.put(name, entry.getValue());
+                }
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,235 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates paths as they are seen inside the sandbox into paths as they are
+ * seen on the sandbox host, for use in the arguments and working directories
+ * of processes started on the sandbox host.
+ *
+ * The translations are derived once from the sandbox's mount table and kept in
+ * a trie of path components, so that translating a path costs one map lookup
+ * per component. The following are translated:
+ * <ul>
+ * <li>Paths under /run/host (and /var/run/host) where the host's filesystems
+ * are mounted, which simply lose that prefix.</li>
+ * <li>Paths under other mount points whose contents come from a host
+ * filesystem that is also mounted under /run/host, for example /app, which
+ * become the location of the mounted directory on the host. Mount points that
+ * also exist under /run/host, such as /usr and /etc, are ambiguous because the
+ * host has its own directory at the same path, so they are not
+ * translated.</li>
+ * </ul>
+ * Everything else, including home directories and document portal paths, is
+ * at the same path in the sandbox as on the host.
+ *
+ * Translation of arguments and working directories, and the use of the mount
+ * table, can be disabled by setting the
+ * "flatpak.hostcommandrunner.translatePaths" system property to false, in
+ * which case only executable paths under /run/host are translated.
+ */
+final class HostPathTranslator {
+
+    private static final boolean ENABLED = !"false"
+            .equals(System.getProperty("flatpak.hostcommandrunner.translatePaths"));
+
+    private static final String HOST_ROOT = "/run/host";
+
+    private HostPathTranslator() {
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        String target;
+    }
+
+    /** Lazily initialised so that the mount table is only read when needed. */
+    private static final class Holder {
+        static final Node root = build();
+    }
+
+    private static final class Mount {
+        final String device;
+        final String root;
+        final String mountPoint;
+
+        Mount(String device, String root, String mountPoint) {
+            this.device = device;
+            this.root = root;
+            this.mountPoint = mountPoint;
+        }
+    }
+
+    private static Node build() {
+        Node root = new Node();
+        insert(root, HOST_ROOT, "/");
+        insert(root, "/var" + HOST_ROOT, "/");
+        if (!ENABLED) {
+            return root;
+        }
+
+        List<Mount> mounts = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/mountinfo"), StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ");
+                if (fields.length > 4) {
+                    mounts.add(new Mount(fields[2], unescape(fields[3]), unescape(fields[4])));
+                }
+            }
+        } catch (IOException e) {
+            return root;
+        }
+
+        // Work out where the root of each device that is mounted under /run/host lives
+        // on the host, and which paths the host has its own mounts at
+        Map<String, String> hostLocations = new HashMap<>();
+        Set<String> hostMountPoints = new HashSet<>();
+        for (Mount m : mounts) {
+            if (m.mountPoint.startsWith(HOST_ROOT + "/")) {
+                String hostPath = m.mountPoint.substring(HOST_ROOT.length());
+                hostMountPoints.add(hostPath);
+                String rootPath = "/".equals(m.root) ? "" : m.root;
+                if (hostPath.endsWith(rootPath)) {
+                    hostLocations.put(m.device, hostPath.substring(0, hostPath.length() - rootPath.length()));
+                }
+            }
+        }
+
+        // Sandbox mounts of those devices can then be located on the host, later mounts
+        // hide earlier ones at the same mount point
+        for (Mount m : mounts) {
+            String location = hostLocations.get(m.device);
+            if (location == null || m.mountPoint.equals("/") || m.mountPoint.startsWith(HOST_ROOT + "/")
+                    || m.mountPoint.startsWith("/var" + HOST_ROOT + "/") || hostMountPoints.contains(m.mountPoint)) {
+                continue;
+            }
+            String target = location + ("/".equals(m.root) ? "" : m.root);
+            if (!target.equals(m.mountPoint)) {
+                insert(root, m.mountPoint, target.isEmpty() ? "/" : target);
+            }
+        }
+        return root;
+    }
+
+    /** Decodes the octal escapes used for whitespace and backslashes in the mount table. */
+    private static String unescape(String field) {
+        if (field.indexOf('\\') == -1) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length()) {
+                sb.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                i += 3;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void insert(Node root, String path, String target) {
+        Node node = root;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > start) {
+                node = node.children.computeIfAbsent(path.substring(start, end), k -> new Node());
+            }
+            start = end + 1;
+        }
+        node.target = target;
+    }
+
+    /**
+     * Translates a sandbox path into the equivalent host path.
+     *
+     * @return the host path, or the given path if it needs no translation or is
+     *         not an absolute path
+     */
+    static String toHost(String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return path;
+        }
+        Node node = Holder.root;
+        String target = null;
+        int matched = 0;
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end == -1) {
+                end = path.length();
+            }
+            if (end > start) {
+                node = node.children.get(path.substring(start, end));
+                if (node == null) {
+                    break;
+                }
+                if (node.target != null) {
+                    target = node.target;
+                    matched = end;
+                }
+            }
+            start = end + 1;
+        }
+        if (target == null) {
+            return path;
+        }
+        String rest = path.substring(matched);
+        if (rest.isEmpty()) {
+            return target;
+        }
+        return "/".equals(target) ? rest : target + rest;
+    }
+
+    /**
+     * Whether the given path is where the sandbox host's filesystems are mounted.
+     */
+    static boolean isHostPath(String path) {
+        return path.startsWith(HOST_ROOT + "/") || path.startsWith("/var" + HOST_ROOT + "/");
+    }
+
+    /**
+     * Translates a command line argument or working directory, which may either
+     * be a path or an option of the form "--name=path".
+     */
+    static String argumentToHost(String arg) {
+        if (!ENABLED) {
+            return arg;
+        }
+        if (!arg.isEmpty() && arg.charAt(0) == '/') {
+            return toHost(arg);
+        }
+        int eq = arg.indexOf('=');
+        if (arg.startsWith("-") && eq != -1 && eq + 1 < arg.length() && arg.charAt(eq + 1) == '/') {
+            String value = arg.substring(eq + 1);
+            String translated = toHost(value);
+            if (translated != value) {
+                return arg.substring(0, eq + 1) + translated;
+            }
+        }
+        return arg;
+    }
+}
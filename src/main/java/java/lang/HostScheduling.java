@@ -0,0 +1,153 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scheduling attributes and resource limits for processes started on the
+ * sandbox host, so that background work can be kept from degrading
+ * interactive host commands.
+ *
+ * The attributes are taken from the following process environment variables,
+ * which are not themselves passed on to the host command:
+ * <dl>
+ * <dt>FLATPAK_HOST_NICE</dt>
+ * <dd>the niceness adjustment, from -20 to 19</dd>
+ * <dt>FLATPAK_HOST_IOPRIO</dt>
+ * <dd>the I/O scheduling class, one of "idle", "best-effort" or "realtime",
+ * optionally followed by a colon and a priority level from 0 to 7</dd>
+ * <dt>FLATPAK_HOST_CPU_AFFINITY</dt>
+ * <dd>the list of CPUs the command may run on, for example "0-3,6"</dd>
+ * <dt>FLATPAK_HOST_RLIMITS</dt>
+ * <dd>a comma separated list of resource limits, for example
+ * "as=4294967296,cpu=600", where the names are those of the prlimit(1)
+ * options and the values are either a single limit, "soft:hard" or
+ * "unlimited"</dd>
+ * </dl>
+ *
+ * The attributes are applied on the host by running the command through the
+ * nice(1), ionice(1), taskset(1) and prlimit(1) utilities, each of which
+ * executes the command in place so that its process ID is unchanged.
+ */
+final class HostScheduling {
+
+    static final String NICE = "FLATPAK_HOST_NICE";
+    static final String IOPRIO = "FLATPAK_HOST_IOPRIO";
+    static final String CPU_AFFINITY = "FLATPAK_HOST_CPU_AFFINITY";
+    static final String RLIMITS = "FLATPAK_HOST_RLIMITS";
+
+    private static final Set<String> RLIMIT_NAMES = new HashSet<>(Arrays.asList("as", "core", "cpu", "data",
+            "fsize", "locks", "memlock", "msgqueue", "nice", "nofile", "nproc", "rss", "rtprio", "rttime",
+            "sigpending", "stack"));
+
+    private HostScheduling() {
+    }
+
+    /**
+     * Whether the given environment variable is a scheduling attribute rather
+     * than something that should be passed on to the host command.
+     */
+    static boolean isAttribute(String name) {
+        return NICE.equals(name) || IOPRIO.equals(name) || CPU_AFFINITY.equals(name) || RLIMITS.equals(name);
+    }
+
+    /**
+     * Generates the command prefix that applies the scheduling attributes found
+     * in the given environment.
+     *
+     * @return the prefix, which is empty if no attributes are present
+     * @throws IOException if any of the attributes has an invalid value
+     */
+    static List<String> commandPrefix(Map<String, String> environment) throws IOException {
+        List<String> prefix = new ArrayList<>();
+        if (environment == null) {
+            return prefix;
+        }
+
+        String rlimits = environment.get(RLIMITS);
+        if (rlimits != null && !rlimits.isEmpty()) {
+            prefix.add("prlimit");
+            for (String rlimit : rlimits.split(",")) {
+                String[] parts = rlimit.trim().split("=", 2);
+                if (parts.length != 2 || !RLIMIT_NAMES.contains(parts[0])
+                        || !parts[1].matches("(unlimited|[0-9]*)(:(unlimited|[0-9]*))?") || parts[1].isEmpty()) {
+                    throw invalid(RLIMITS, rlimits);
+                }
+                prefix.add("--" + parts[0] + "=" + parts[1]);
+            }
+        }
+
+        String affinity = environment.get(CPU_AFFINITY);
+        if (affinity != null && !affinity.isEmpty()) {
+            if (!affinity.matches("[0-9]+(-[0-9]+(:[0-9]+)?)?(,[0-9]+(-[0-9]+(:[0-9]+)?)?)*")) {
+                throw invalid(CPU_AFFINITY, affinity);
+            }
+            prefix.add("taskset");
+            prefix.add("-c");
+            prefix.add(affinity);
+        }
+
+        String nice = environment.get(NICE);
+        if (nice != null && !nice.isEmpty()) {
+            try {
+                int n = Integer.parseInt(nice.trim());
+                if (n < -20 || n > 19) {
+                    throw invalid(NICE, nice);
+                }
+                prefix.add("nice");
+                prefix.add("-n");
+                prefix.add(Integer.toString(n));
+            } catch (NumberFormatException e) {
+                throw invalid(NICE, nice);
+            }
+        }
+
+        String ioprio = environment.get(IOPRIO);
+        if (ioprio != null && !ioprio.isEmpty()) {
+            String[] parts = ioprio.trim().split(":", 2);
+            String ioclass;
+            switch (parts[0]) {
+            case "realtime":
+                ioclass = "1";
+                break;
+            case "best-effort":
+                ioclass = "2";
+                break;
+            case "idle":
+                ioclass = "3";
+                break;
+            default:
+                throw invalid(IOPRIO, ioprio);
+            }
+            prefix.add("ionice");
+            prefix.add("-c");
+            prefix.add(ioclass);
+            if (parts.length == 2) {
+                if (!parts[1].matches("[0-7]") || "3".equals(ioclass)) {
+                    throw invalid(IOPRIO, ioprio);
+                }
+                prefix.add("-n");
+                prefix.add(parts[1]);
+            }
+        }
+        return prefix;
+    }
+
+    private static IOException invalid(String name, String value) {
+        return new IOException("Invalid value for " + name + ": \"" + value + "\"");
+    }
+}
@@ -0,0 +1,122 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resource usage accounting for a process started on the sandbox host, and
+ * the aggregate usage of all such processes, keyed by command name.
+ *
+ * Only what can be observed from inside the sandbox is accounted for: the wall
+ * time between starting the process and it exiting, and the number of bytes
+ * that passed through each of its standard stream pipes. The CPU time and
+ * memory usage of the command itself are not available because it is not
+ * visible from the sandbox, and the exit notification from the host carries
+ * nothing but the wait status.
+ */
+final class HostUsage {
+
+    static final int STDIN = 0;
+    static final int STDOUT = 1;
+    static final int STDERR = 2;
+
+    private static final Map<String, Totals> totals = new ConcurrentHashMap<>();
+
+    private final String command;
+    private final long startNanos;
+    private final AtomicLongArray bytes = new AtomicLongArray(3);
+    private volatile long exitNanos;
+    private volatile boolean exited;
+    private final CompletableFuture<Map<String, Long>> finished = new CompletableFuture<>();
+
+    private static final class Totals {
+        final LongAdder processes = new LongAdder();
+        final LongAdder wallNanos = new LongAdder();
+        final LongAdder[] bytes = { new LongAdder(), new LongAdder(), new LongAdder() };
+    }
+
+    HostUsage(String command) {
+        int slash = command.lastIndexOf('/');
+        this.command = slash == -1 ? command : command.substring(slash + 1);
+        this.startNanos = System.nanoTime();
+    }
+
+    /** Called as data passes through one of the process's pipes. */
+    void transferred(int stream, long n) {
+        bytes.addAndGet(stream, n);
+    }
+
+    /** Called by the process reaper thread when the process exits. */
+    void processExited() {
+        exitNanos = System.nanoTime();
+        exited = true;
+    }
+
+    /**
+     * Called once any output left in the pipes after exit has been drained, so
+     * the usage is final and can be added to the totals.
+     */
+    void processFinished() {
+        Totals t = totals.computeIfAbsent(command, k -> new Totals());
+        t.processes.increment();
+        t.wallNanos.add(exitNanos - startNanos);
+        for (int i = 0; i < 3; i++) {
+            t.bytes[i].add(bytes.get(i));
+        }
+        finished.complete(snapshot());
+    }
+
+    /**
+     * Returns a future that completes with the final usage of this process once
+     * any output left in the pipes after exit has been drained.
+     */
+    CompletableFuture<Map<String, Long>> finished() {
+        return finished;
+    }
+
+    /**
+     * Returns a snapshot of the usage of this process, its wall time is -1 if it
+     * has not yet exited.
+     */
+    Map<String, Long> snapshot() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usage.put("wallNanos", exited ? exitNanos - startNanos : -1L);
+        usage.put("stdinBytes", bytes.get(STDIN));
+        usage.put("stdoutBytes", bytes.get(STDOUT));
+        usage.put("stderrBytes", bytes.get(STDERR));
+        return usage;
+    }
+
+    /**
+     * Returns a snapshot of the aggregate usage of all host processes that have
+     * finished, keyed by command name.
+     */
+    static Map<String, Map<String, Long>> totals() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+            Totals t = entry.getValue();
+            Map<String, Long> usage = new LinkedHashMap<>();
+            usage.put("processes", t.processes.sum());
+            usage.put("wallNanos", t.wallNanos.sum());
+            usage.put("stdinBytes", t.bytes[STDIN].sum());
+            usage.put("stdoutBytes", t.bytes[STDOUT].sum());
+            usage.put("stderrBytes", t.bytes[STDERR].sum());
+            result.put(entry.getKey(), usage);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+import jdk.internal.misc.JavaIOFileDescriptorAccess;
+import jdk.internal.misc.SharedSecrets;
+
+/**
+ * Feeds a single input to the standard input of many processes.
+ *
+ * The input is always held in a file: either the file given by the caller or,
+ * for input given as a buffer, an anonymous file in a memory-backed filesystem
+ * that the buffer is written to once. Each process is then fed from the same
+ * file descriptor using splice(2) with its own offset, so the data is shared
+ * through the page cache rather than being copied once per process, and a slow
+ * process does not hold up the others. Processes whose standard input is not a
+ * pipe that can be taken over are fed by copying in Java instead.
+ */
+final class InputFanOut {
+
+    private static final JavaIOFileDescriptorAccess fdAccess = SharedSecrets.getJavaIOFileDescriptorAccess();
+
+    private InputFanOut() {
+    }
+
+    static CompletableFuture<Void> feed(ByteBuffer data, Process... processes) {
+        Path file = null;
+        try {
+            file = Files.createTempFile(CapturingProcess.captureDirectory(), "flatpak-shim-", ".input");
+            FileInputStream source;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer bb = data.duplicate();
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+                source = new FileInputStream(file.toFile());
+            }
+            return feed(source, processes);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    static CompletableFuture<Void> feed(Path path, Process... processes) {
+        try {
+            return feed(new FileInputStream(path.toFile()), processes);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Feeds the whole of the given file to all the processes, and closes it once
+     * all of them have been fed.
+     */
+    private static CompletableFuture<Void> feed(FileInputStream source, Process... processes) throws IOException {
+        FileChannel channel = source.getChannel();
+        long length;
+        int in;
+        try {
+            length = channel.size();
+            in = fdAccess.get(source.getFD());
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+
+        CompletableFuture<?>[] feeds = new CompletableFuture<?>[processes.length];
+        for (int i = 0; i < processes.length; i++) {
+            OutputStream stdin = processes[i].getOutputStream();
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            feeds[i] = result;
+            ShimExecutor.get().execute(() -> {
+                try {
+                    int out = FlatpakProcessImpl.detachDescriptor(stdin);
+                    if (out != -1) {
+                        FlatpakProcessImpl.spliceFile(in, 0, length, out);
+                    } else {
+                        try (OutputStream o = stdin) {
+                            WritableByteChannel target = Channels.newChannel(o);
+                            // A transfer may move fewer bytes than asked for, so keep going until
+                            // the end of the file as the native loop does
+                            long position = 0;
+                            while (position < length) {
+                                long n = channel.transferTo(position, length - position, target);
+                                if (n <= 0) {
+                                    break;
+                                }
+                                position += n;
+                            }
+                        }
+                    }
+                    result.complete(null);
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        }
+        return CompletableFuture.allOf(feeds).whenComplete((unusedResult, unusedThrowable) -> {
+            try {
+                source.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+}
@@ -0,0 +1,92 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import jdk.internal.ref.CleanerFactory;
+
+/**
+ * Reports host processes that were abandoned by the caller while they were
+ * still running, that is, garbage collected without the caller ever waiting for
+ * them or destroying them. The pipes of abandoned processes are closed by the
+ * garbage collector regardless, but a process that is abandoned while still
+ * running is usually a bug in the caller.
+ *
+ * Detection is enabled by setting the
+ * "flatpak.hostcommandrunner.leakDetectionSampling" system property to N, in
+ * which case one in every N processes is tracked. The stack of the caller that
+ * started each tracked process is captured so that it can be included in the
+ * report, which is why not every process is tracked by default.
+ */
+final class LeakDetector {
+
+    private static final int SAMPLING = Integer.getInteger("flatpak.hostcommandrunner.leakDetectionSampling", 0);
+
+    private static final AtomicLong started = new AtomicLong();
+
+    private static final LongAdder tracked = new LongAdder();
+    private static final LongAdder reclaimed = new LongAdder();
+    private static final LongAdder abandoned = new LongAdder();
+
+    private LeakDetector() {
+    }
+
+    /** Where a tracked process was started. */
+    private static final class StartedAt extends Throwable {
+        private static final long serialVersionUID = 1L;
+
+        StartedAt(long pid) {
+            super("host process " + pid + " was started here");
+        }
+    }
+
+    /**
+     * Tracks the given process if it is sampled. The supplier must not refer back
+     * to the process, otherwise the process never becomes unreachable.
+     *
+     * @param alive tells whether the process was still running when it was
+     *              reclaimed
+     */
+    static void track(Object process, long pid, BooleanSupplier alive) {
+        if (SAMPLING <= 0 || started.getAndIncrement() % SAMPLING != 0) {
+            return;
+        }
+        tracked.increment();
+        StartedAt startedAt = new StartedAt(pid);
+        CleanerFactory.cleaner().register(process, () -> {
+            reclaimed.increment();
+            if (alive.getAsBoolean()) {
+                abandoned.increment();
+                StringWriter stack = new StringWriter();
+                startedAt.printStackTrace(new PrintWriter(stack));
+                ShimLog.warning("abandonedProcess", "pid", pid, "startedAt", stack);
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the detector.
+     */
+    static Map<String, Long> statistics() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("sampling", (long) SAMPLING);
+        stats.put("tracked", tracked.sum());
+        stats.put("reclaimed", reclaimed.sum());
+        stats.put("abandoned", abandoned.sum());
+        return stats;
+    }
+}
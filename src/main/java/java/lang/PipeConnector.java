@@ -0,0 +1,83 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Connects a source stream to a sink stream so that everything read from the
+ * source is written to the sink. When both streams are backed by file
+ * descriptors (host process pipes, files or sockets) the data is moved by the
+ * kernel on a shim worker thread using splice(2) and never touches the Java
+ * heap. Otherwise the data is copied in Java on the same worker thread.
+ */
+final class PipeConnector {
+
+    private PipeConnector() {
+    }
+
+    static CompletableFuture<Long> connect(InputStream source, OutputStream sink) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        int in = -1;
+        int out = -1;
+        try {
+            in = FlatpakProcessImpl.detachDescriptor(source);
+            if (in != -1) {
+                out = FlatpakProcessImpl.detachDescriptor(sink);
+                if (out == -1) {
+                    // The sink cannot be used natively, so we have to read the source in Java
+                    // after all
+                    source = FlatpakProcessImpl.descriptorInputStream(in);
+                    in = -1;
+                }
+            }
+        } catch (IOException e) {
+            // A descriptor that was already detached is no longer owned by its stream
+            closeDescriptor(in);
+            closeDescriptor(out);
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (in != -1) {
+            final int inFd = in;
+            final int outFd = out;
+            ShimExecutor.get().execute(() -> {
+                try {
+                    result.complete(FlatpakProcessImpl.transferDescriptors(inFd, outFd));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } else {
+            final InputStream src = source;
+            ShimExecutor.get().execute(() -> {
+                try (InputStream i = src; OutputStream o = sink) {
+                    result.complete(i.transferTo(o));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        }
+        return result;
+    }
+
+    private static void closeDescriptor(int fd) {
+        if (fd != -1) {
+            try {
+                FlatpakProcessImpl.descriptorInputStream(fd).close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -9,9 +9,12 @@
  **********************************************************************/
 package java.lang;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -22,19 +25,97 @@ import java.util.Map;
  */
 class ProcessImplFactory {
 
+    /**
+     * Whether the JVM is running inside a Flatpak sandbox. If not, processes are
+     * started exactly as they would be without the shim.
+     */
+    private static final boolean SANDBOXED = detectSandbox();
+
+    /**
+     * Replaces the commands that are finally executed, so that recorded workloads
+     * can be replayed through the whole of the shim, routing, admission and
+     * coalescing included, without running the commands of the workload.
+     */
+    interface Backend {
+        /**
+         * Returns the command to execute in place of the given one, which for the
+         * sandbox host is the complete flatpak-spawn command line.
+         */
+        String[] command(boolean onHost, String[] cmdarray);
+    }
+
+    private static volatile Backend backend;
+
+    /**
+     * Replaces the commands that are executed, or restores the default if null.
+     * Processes are routed as if inside the sandbox while a backend is set.
+     */
+    static void setBackend(Backend replacement) {
+        backend = replacement;
+    }
+
+    static boolean hasBackend() {
+        return backend != null;
+    }
+
+    /**
+     * Returns the command to execute for the given command, which is the given
+     * command itself unless a backend is set.
+     */
+    static String[] finalCommand(boolean onHost, String[] cmdarray) {
+        Backend b = backend;
+        return b == null ? cmdarray : b.command(onHost, cmdarray);
+    }
+
+    private static boolean detectSandbox() {
+        String override = System.getProperty("flatpak.hostcommandrunner.sandboxed");
+        if (override != null && !override.isEmpty()) {
+            return Boolean.parseBoolean(override);
+        }
+        // Flatpak always provides this file and variable inside the sandbox
+        return new File("/.flatpak-info").exists() || System.getenv("FLATPAK_ID") != null;
+    }
+
     /**
      * For use only by {@link ProcessBuilder#start()}.
      */
     static Process start(String[] cmdarray, Map<String, String> environment, String dir,
             ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException {
+        if (!SANDBOXED && backend == null) {
+            return ProcessImpl.start(cmdarray, environment, dir, redirects, redirectErrStream);
+        }
+        // Begun first because routing may rewrite the command
+        SpawnRecorder.Spawn spawn = SpawnRecorder.begin(cmdarray);
+        SpawnTrace.Span span = SpawnTrace.begin(cmdarray[0]);
+        try {
+            Process process = startProcess(cmdarray, environment, dir, redirects, redirectErrStream, span);
+            if (span != null) {
+                span.stage(SpawnTrace.STARTED);
+            }
+            if (spawn != null) {
+                spawn.started(process);
+            }
+            return process;
+        } catch (IOException | RuntimeException e) {
+            if (spawn != null) {
+                spawn.failed();
+            }
+            throw e;
+        } finally {
+            SpawnTrace.end(span);
+        }
+    }
 
-        Path exe = Paths.get(cmdarray[0]);
-        if (exe.startsWith(Paths.get("/var/run/host"))) {
+    private static Process startProcess(String[] cmdarray, Map<String, String> environment, String dir,
+            ProcessBuilder.Redirect[] redirects, boolean redirectErrStream, SpawnTrace.Span span) throws IOException {
+
+        if (HostPathTranslator.isHostPath(cmdarray[0])) {
             // If the desired executable program lives in /var/run/host (where the sandbox
             // host is mounted) then execute it on the sandbox host
-            cmdarray[0] = Paths.get("/").resolve(exe.subpath(3, exe.getNameCount())).toString();
+            cmdarray[0] = HostPathTranslator.toHost(cmdarray[0]);
             return runOnHost(cmdarray, environment, dir, redirects, redirectErrStream);
         }
+        Path exe = Paths.get(cmdarray[0]);
         // 1) Invoking "which" directly, the command we really want to test for is the
         // next argument
         String testexe = cmdarray[0];
@@ -66,12 +147,18 @@ class ProcessImplFactory {
 
         // If the desired executable program exists in the sandbox, then run normally
         boolean inSandbox = detectExecutablePresence(true, testexe, environment, dir);
+        if (span != null) {
+            span.stage(SpawnTrace.SANDBOX_PROBED);
+        }
         if (inSandbox) {
             return runInSandbox(cmdarray, environment, dir, redirects, redirectErrStream);
         }
         // If the desired executable program does not exist in the sandbox, then execute
         // it on the sandbox host
         boolean onHost = detectExecutablePresence(false, testexe, environment, dir);
+        if (span != null) {
+            span.stage(SpawnTrace.HOST_PROBED);
+        }
         if (onHost || which) {
             return runOnHost(cmdarray, environment, dir, redirects, redirectErrStream);
         }
@@ -80,50 +167,108 @@ class ProcessImplFactory {
 
     private static boolean detectExecutablePresence(boolean sandbox, String exe, Map<String, String> environment,
             String dir) throws IOException {
+        // Where a bare command name resolves to does not depend on the working
+        // directory, so it can be shared with other JVMs in the sandbox
+        boolean cacheable = ResolutionCache.ENABLED && exe.indexOf('/') == -1;
+        String searchPath = cacheable ? searchPath(sandbox, environment) : null;
+        if (cacheable) {
+            Boolean present = ResolutionCache.lookup(sandbox, exe, searchPath);
+            if (present != null) {
+                return present;
+            }
+        }
         String[] whichCommand = new String[] { "sh", "-c", "-l", "which " + exe };
+        if (!sandbox && HostLoginEnvironment.get() != null) {
+            // The host command will be given the host's login PATH anyway
+            whichCommand = new String[] { "sh", "-c", "which " + exe };
+        }
         ProcessBuilder.Redirect[] redirects = new ProcessBuilder.Redirect[] { ProcessBuilder.Redirect.PIPE,
                 ProcessBuilder.Redirect.PIPE, ProcessBuilder.Redirect.PIPE };
         Process which;
-        if (Boolean.getBoolean("flatpak.hostcommandrunner.debug")) {
-            System.err.println("Checking for presence of '" + exe + (sandbox ? "' in sandbox" : "' on sandbox host"));
+        if (ShimLog.DEBUG) {
+            ShimLog.debug("probe", "executable", exe, "location", sandbox ? "sandbox" : "host");
         }
-        if (sandbox) {
-            which = runInSandbox(whichCommand, environment, dir, redirects, false);
-        } else {
-            which = runOnHost(whichCommand, environment, dir, redirects, false);
+        SpawnTrace.Span span = SpawnTrace.suspend();
+        try {
+            if (sandbox) {
+                which = runInSandbox(whichCommand, environment, dir, redirects, false);
+            } else {
+                which = runOnHost(whichCommand, environment, dir, redirects, false);
+            }
+        } finally {
+            SpawnTrace.resume(span);
         }
         try {
-            int exit = which.waitFor();
-            if (exit == 0) {
-                return true;
+            String resolved = null;
+            if (cacheable) {
+                // Where it was found decides whether changes to it are being watched
+                try (InputStream out = which.getInputStream()) {
+                    resolved = new String(out.readAllBytes()).trim();
+                    // A login shell may print other things first
+                    resolved = resolved.substring(resolved.lastIndexOf('\n') + 1);
+                }
             }
-            return false;
+            boolean present = which.waitFor() == 0;
+            if (cacheable) {
+                ResolutionCache.store(sandbox, exe, searchPath, present, present ? parentOf(resolved) : null);
+            }
+            return present;
         } catch (InterruptedException e) {
             throw new IOException("Unable to determine location of executable");
         }
     }
 
+    private static String parentOf(String file) {
+        int slash = file.lastIndexOf('/');
+        return slash <= 0 ? null : file.substring(0, slash);
+    }
+
+    /**
+     * Returns the PATH that the probe for an executable in the given location is
+     * given, which is what the resolution depends on.
+     */
+    private static String searchPath(boolean sandbox, Map<String, String> environment) {
+        if (!sandbox) {
+            environment = HostLoginEnvironment.merge(environment);
+        }
+        return environment == null ? System.getenv("PATH") : environment.get("PATH");
+    }
+
     private static Process runInSandbox(String[] cmdarray, Map<String, String> environment, String dir,
             ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException {
-        if (Boolean.getBoolean("flatpak.hostcommandrunner.debug")) {
-            StringBuilder sb = new StringBuilder("Running in sandbox:");
-            for (String arg : cmdarray) {
-                sb.append(" " + arg);
-            }
-            System.err.println(sb.toString());
+        if (ShimLog.DEBUG) {
+            ShimLog.debug("start", "location", "sandbox", "command", List.of(cmdarray));
         }
-        return ProcessImpl.start(cmdarray, environment, dir, redirects, redirectErrStream);
+        return ProcessImpl.start(finalCommand(false, cmdarray), environment, dir, redirects, redirectErrStream);
     }
 
     private static Process runOnHost(String[] cmdarray, Map<String, String> environment, String dir,
             ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException {
-        if (Boolean.getBoolean("flatpak.hostcommandrunner.debug")) {
-            StringBuilder sb = new StringBuilder("Running on sandbox host:");
-            for (String arg : cmdarray) {
-                sb.append(" " + arg);
-            }
-            System.err.println(sb.toString());
+        if (ShimLog.DEBUG) {
+            ShimLog.debug("start", "location", "host", "command", List.of(cmdarray));
+        }
+        if (CoalescedExecution.isEligible(cmdarray, redirects)) {
+            return CoalescedExecution.start(cmdarray, environment, dir, redirectErrStream,
+                    ProcessImplFactory::startOnHost);
+        }
+        return startOnHost(cmdarray, environment, dir, redirects, redirectErrStream);
+    }
+
+    private static FlatpakProcessImpl startOnHost(String[] cmdarray, Map<String, String> environment, String dir,
+            ProcessBuilder.Redirect[] redirects, boolean redirectErrStream) throws IOException {
+        environment = HostLoginEnvironment.merge(environment);
+        if (!HostAdmission.ENABLED) {
+            return FlatpakProcessImpl.start(cmdarray, environment, dir, redirects, redirectErrStream);
+        }
+        HostAdmission.Ticket ticket = HostAdmission.acquire();
+        FlatpakProcessImpl process;
+        try {
+            process = FlatpakProcessImpl.start(cmdarray, environment, dir, redirects, redirectErrStream);
+        } catch (IOException | RuntimeException e) {
+            ticket.failed();
+            throw e;
         }
-        return FlatpakProcessImpl.start(cmdarray, environment, dir, redirects, redirectErrStream);
+        ticket.started(process.completion());
+        return process;
     }
 }
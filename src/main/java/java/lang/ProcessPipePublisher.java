@@ -0,0 +1,186 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publisher of the bytes read from one of a process's output streams.
+ *
+ * The stream is only read while the subscriber has outstanding demand, so a
+ * slow subscriber causes the pipe to fill up and the process to block on its
+ * next write instead of the data being buffered here. No thread is held on
+ * behalf of the stream while there is no demand; reads are done by tasks
+ * submitted to the given executor that run until demand is exhausted.
+ *
+ * Only a single subscriber is permitted because the bytes of a stream can only
+ * be consumed once. Cancelling the subscription closes the stream, which for
+ * the streams of host processes also ends a read that is waiting for the
+ * process to write, so the executor is not held until the process next writes
+ * or exits.
+ */
+final class ProcessPipePublisher implements Flow.Publisher<ByteBuffer> {
+
+    /** The maximum number of bytes delivered in a single onNext signal. */
+    static final int CHUNK_SIZE = 8192;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    ProcessPipePublisher(InputStream in, Executor executor) {
+        this.in = Objects.requireNonNull(in);
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("process stream already has a subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new PipeSubscription(subscriber));
+    }
+
+    private final class PipeSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable pendingError;
+        private boolean done;
+
+        PipeSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                pendingError = new IllegalArgumentException("non-positive subscription request: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = demand.get();
+                    next = current + n;
+                    if (next < 0) {
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!demand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // Ends a read that is in progress, terminating happens on the executor
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * Drains as much of the stream as the current demand allows and then
+         * returns, so the pipe is left unread until more demand arrives.
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (!done) {
+                    drain();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                while (!done) {
+                    if (cancelled) {
+                        terminate();
+                        return;
+                    }
+                    Throwable error = pendingError;
+                    if (error != null) {
+                        terminate();
+                        subscriber.onError(error);
+                        return;
+                    }
+                    long requested = demand.get();
+                    if (requested == 0) {
+                        return;
+                    }
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    int n = in.read(chunk);
+                    if (n < 0) {
+                        terminate();
+                        if (!cancelled) {
+                            subscriber.onComplete();
+                        }
+                        return;
+                    }
+                    if (requested != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    if (n > 0 && !cancelled) {
+                        subscriber.onNext(ByteBuffer.wrap(chunk, 0, n));
+                    }
+                }
+            } catch (IOException e) {
+                if (!done) {
+                    terminate();
+                    if (!cancelled) {
+                        subscriber.onError(e);
+                    }
+                }
+            }
+        }
+
+        private void terminate() {
+            done = true;
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
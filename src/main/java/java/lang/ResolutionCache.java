@@ -0,0 +1,359 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Remembers whether executables were found in the sandbox and on the sandbox
+ * host, so that the "which" probes do not have to be repeated. The cache lives
+ * in a file in the per-user runtime directory that is mapped into memory by
+ * every JVM in the sandbox that uses the shim, so the probes of one JVM benefit
+ * all the others.
+ *
+ * The cache is enabled by setting the
+ * "flatpak.hostcommandrunner.resolutionCache" system property to true, and
+ * entries expire after the number of seconds given by the
+ * "flatpak.hostcommandrunner.resolutionCacheTtl" system property, five minutes
+ * by default. Entries for executables that were found in a directory that a
+ * {@link ResolutionWatcher} is watching are kept up to date by it, so do not
+ * expire while it is running. Entries for executables that were not found
+ * always expire, since the directories that an executable might yet appear in
+ * are not all known, nor can they all be watched. Only bare command names are
+ * cached, because the resolution of paths depends on the working directory, and
+ * entries are keyed by the PATH that the command was looked up on as well as by
+ * its name and location, since JVMs and callers that share the table may search
+ * different directories.
+ *
+ * The file is a fixed size open addressing hash table, and is updated without
+ * locks. Entries for the same name and location are placed by the hash of the
+ * name and location alone, so entries for different PATHs are found next to
+ * each other and can be invalidated together. Each slot is guarded by a
+ * sequence number that is odd while the slot is being written: writers claim a
+ * slot by atomically incrementing its sequence number from even to odd, and
+ * readers retry or give up if the sequence number was odd or changed while they
+ * read the slot. If no runtime directory is available, the same table is kept
+ * in memory and is private to the JVM.
+ */
+final class ResolutionCache {
+
+    static final boolean ENABLED = Boolean.getBoolean("flatpak.hostcommandrunner.resolutionCache");
+
+    private static final long TTL_MILLIS = Long.getLong("flatpak.hostcommandrunner.resolutionCacheTtl", 300) * 1000;
+
+    static final int SLOTS = 1024;
+    static final int SLOT_SIZE = 128;
+    private static final int MAX_PROBES = 8;
+
+    // Slot layout
+    private static final int SEQ = 0;
+    private static final int HASH = 8;
+    private static final int EXPIRES = 16;
+    private static final int FLAGS = 24;
+    private static final int KEY_LENGTH = 28;
+    private static final int PATH_HASH = 32;
+    private static final int DIR_HASH = 40;
+    private static final int KEY = 48;
+    private static final int MAX_KEY_LENGTH = SLOT_SIZE - KEY;
+
+    // Flags, whether the executable is present is unknown until the known bit is set
+    private static final int KNOWN = 1;
+    private static final int PRESENT = 2;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private ResolutionCache() {
+    }
+
+    /** Lazily initialised so that the file is only mapped when needed. */
+    private static final class Holder {
+        static final Table table = new Table(open(), TTL_MILLIS);
+
+        static {
+            ResolutionWatcher.start();
+        }
+    }
+
+    private static ByteBuffer open() {
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        // The answers of a replaced backend must not reach other JVMs
+        if (runtimeDir != null && !runtimeDir.isEmpty() && !ProcessImplFactory.hasBackend()) {
+            try {
+                Path dir = Paths.get(runtimeDir, "flatpak-dev-shim");
+                Files.createDirectories(dir);
+                // The name carries the version of the slot layout
+                try (FileChannel channel = FileChannel.open(dir.resolve("resolution-cache-2"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    // A new file reads as zeroes, which is an empty table
+                    return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOTS * SLOT_SIZE)
+                            .order(ByteOrder.nativeOrder());
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                ShimLog.warning("resolutionCacheUnavailable", "error", e);
+            }
+        }
+        return newPrivateBuffer();
+    }
+
+    /**
+     * Returns an empty table that is private to the JVM.
+     */
+    static ByteBuffer newPrivateBuffer() {
+        return ByteBuffer.allocateDirect(SLOTS * SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Looks up whether the given executable was found in the given location when
+     * searching the given PATH.
+     *
+     * @return whether the executable is present, or null if it is not known
+     */
+    static Boolean lookup(boolean sandbox, String exe, String path) {
+        return Holder.table.lookup(sandbox, exe, path);
+    }
+
+    /**
+     * Records whether the given executable was found in the given location when
+     * searching the given PATH, and if so the directory it was found in.
+     */
+    static void store(boolean sandbox, String exe, String path, boolean present, String dir) {
+        Holder.table.store(sandbox, exe, path, present, dir);
+    }
+
+    /**
+     * Forgets whether the given executable is present in the given location, on
+     * any PATH.
+     */
+    static void invalidate(boolean sandbox, String exe) {
+        Holder.table.invalidate(sandbox, exe);
+    }
+
+    /**
+     * Forgets everything.
+     */
+    static void invalidateAll() {
+        Holder.table.invalidateAll();
+    }
+
+    /**
+     * The hash table, over either the shared file or private memory.
+     */
+    static final class Table {
+        private final ByteBuffer table;
+        private final long ttlMillis;
+
+        Table(ByteBuffer table, long ttlMillis) {
+            this.table = table;
+            this.ttlMillis = ttlMillis;
+        }
+
+        Boolean lookup(boolean sandbox, String exe, String path) {
+            byte[] key = key(sandbox, exe);
+            if (key.length > MAX_KEY_LENGTH) {
+                return null;
+            }
+            long hash = hash(key);
+            long pathHash = hash(path);
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = slotOffset(hash, i);
+                long seq = (long) LONG.getAcquire(table, slot + SEQ);
+                if ((seq & 1) != 0) {
+                    continue;
+                }
+                long slotHash = table.getLong(slot + HASH);
+                if (slotHash == 0) {
+                    // Keys are never moved, so the key cannot be any further along
+                    return null;
+                }
+                if (slotHash != hash || table.getLong(slot + PATH_HASH) != pathHash) {
+                    continue;
+                }
+                long expires = table.getLong(slot + EXPIRES);
+                long dirHash = table.getLong(slot + DIR_HASH);
+                int flags = table.getInt(slot + FLAGS);
+                boolean matches = keyMatches(slot, key);
+                VarHandle.acquireFence();
+                if ((long) LONG.getVolatile(table, slot + SEQ) != seq) {
+                    // Raced with a writer, so treat the entry as unknown
+                    return null;
+                }
+                if (!matches) {
+                    continue;
+                }
+                if ((flags & KNOWN) == 0) {
+                    return null;
+                }
+                boolean present = (flags & PRESENT) != 0;
+                // Only the directory an executable was found in is known to be watched by
+                // this JVM, the expiry is for everything else
+                if (expires < System.currentTimeMillis()
+                        && !(present && ResolutionWatcher.isWatched(sandbox, dirHash))) {
+                    return null;
+                }
+                return present;
+            }
+            return null;
+        }
+
+        void store(boolean sandbox, String exe, String path, boolean present, String dir) {
+            byte[] key = key(sandbox, exe);
+            if (key.length > MAX_KEY_LENGTH) {
+                return;
+            }
+            long hash = hash(key);
+            long pathHash = hash(path);
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = slotOffset(hash, i);
+                long seq = (long) LONG.getAcquire(table, slot + SEQ);
+                if ((seq & 1) != 0) {
+                    continue;
+                }
+                long slotHash = table.getLong(slot + HASH);
+                if (slotHash != 0 && (slotHash != hash || table.getLong(slot + PATH_HASH) != pathHash)) {
+                    continue;
+                }
+                if (!LONG.compareAndSet(table, slot + SEQ, seq, seq + 1)) {
+                    // Another writer got there first, it may be storing the same key
+                    continue;
+                }
+                if (slotHash != 0 && (table.getLong(slot + PATH_HASH) != pathHash || !keyMatches(slot, key))) {
+                    LONG.setRelease(table, slot + SEQ, seq + 2);
+                    continue;
+                }
+                table.putLong(slot + HASH, hash);
+                table.putLong(slot + PATH_HASH, pathHash);
+                table.putLong(slot + DIR_HASH, dirHash(dir));
+                table.putLong(slot + EXPIRES, System.currentTimeMillis() + ttlMillis);
+                table.putInt(slot + FLAGS, KNOWN | (present ? PRESENT : 0));
+                table.putInt(slot + KEY_LENGTH, key.length);
+                for (int k = 0; k < key.length; k++) {
+                    table.put(slot + KEY + k, key[k]);
+                }
+                LONG.setRelease(table, slot + SEQ, seq + 2);
+                return;
+            }
+        }
+
+        void invalidate(boolean sandbox, String exe) {
+            byte[] key = key(sandbox, exe);
+            if (key.length > MAX_KEY_LENGTH) {
+                return;
+            }
+            long hash = hash(key);
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = slotOffset(hash, i);
+                long slotHash = table.getLong(slot + HASH);
+                if (slotHash == 0) {
+                    return;
+                }
+                if (slotHash == hash) {
+                    // Every PATH that the executable was looked up on
+                    clearFlags(slot, key);
+                }
+            }
+        }
+
+        void invalidateAll() {
+            for (int slot = 0; slot < SLOTS * SLOT_SIZE; slot += SLOT_SIZE) {
+                if (table.getLong(slot + HASH) != 0) {
+                    clearFlags(slot, null);
+                }
+            }
+        }
+
+        /**
+         * Forgets the entry in a slot, if it holds the given key or any key if null.
+         * The key and hash are left in place so that lookups of keys stored beyond it
+         * still find them.
+         */
+        private void clearFlags(int slot, byte[] key) {
+            // A JVM that died while writing the slot leaves it odd forever, so do not wait
+            // without bound
+            for (int spins = 0; spins < 100_000; spins++) {
+                long seq = (long) LONG.getAcquire(table, slot + SEQ);
+                if ((seq & 1) != 0) {
+                    // Wait for the writer, who may be storing a result that is now stale
+                    Thread.onSpinWait();
+                    continue;
+                }
+                if (!LONG.compareAndSet(table, slot + SEQ, seq, seq + 1)) {
+                    continue;
+                }
+                if (key == null || keyMatches(slot, key)) {
+                    table.putInt(slot + FLAGS, 0);
+                }
+                LONG.setRelease(table, slot + SEQ, seq + 2);
+                return;
+            }
+        }
+
+        private boolean keyMatches(int slot, byte[] key) {
+            if (table.getInt(slot + KEY_LENGTH) != key.length) {
+                return false;
+            }
+            for (int k = 0; k < key.length; k++) {
+                if (table.get(slot + KEY + k) != key[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** The location is part of the key, so each entry describes one location. */
+    private static byte[] key(boolean sandbox, String exe) {
+        return ((sandbox ? "s:" : "h:") + exe).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int slotOffset(long hash, int probe) {
+        return (int) ((hash + probe) & (SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the hash by which the directory an executable was found in is
+     * recorded, or zero if it is not known.
+     */
+    static long dirHash(String dir) {
+        if (dir == null || dir.isEmpty()) {
+            return 0;
+        }
+        try {
+            return hash(Paths.get(dir).normalize().toString());
+        } catch (InvalidPathException e) {
+            return 0;
+        }
+    }
+
+    private static long hash(String s) {
+        return s == null ? 0 : hash(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** 64-bit FNV-1a, which is never zero because zero marks an empty slot. */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
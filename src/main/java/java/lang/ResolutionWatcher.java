@@ -0,0 +1,196 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches the directories in which executables are looked for, both in the
+ * sandbox and on the sandbox host, and invalidates the entries of the
+ * {@link ResolutionCache} for any executables that are created, deleted or have
+ * their attributes changed in them. While the watcher is running, cached
+ * entries for executables that were found in a watched directory do not need
+ * to expire. Directories that do not exist when the watcher starts are not
+ * watched, so executables found in them later still expire.
+ *
+ * The sandbox directories are those on the PATH. The host directories are the
+ * usual locations of executables and those on the PATH of the
+ * {@link HostLoginEnvironment}, if it is enabled, under /run/host where the
+ * host's filesystems are mounted. Watching can be disabled by setting the
+ * "flatpak.hostcommandrunner.resolutionCacheWatch" system property to false.
+ */
+final class ResolutionWatcher {
+
+    private static final boolean ENABLED = !"false"
+            .equals(System.getProperty("flatpak.hostcommandrunner.resolutionCacheWatch"));
+
+    private static final String[] HOST_DIRS = { "/usr/local/bin", "/usr/local/sbin", "/usr/bin", "/usr/sbin", "/bin",
+            "/sbin" };
+
+    private static volatile boolean running;
+
+    private static final int SANDBOX = 1;
+    private static final int HOST = 2;
+
+    /** The locations each watched directory affects, by the key it is registered with. */
+    private static final Map<WatchKey, Integer> keys = new ConcurrentHashMap<>();
+
+    /** The hashes of the watched directories as seen from each location. */
+    private static final Set<Long> sandboxDirHashes = ConcurrentHashMap.newKeySet();
+    private static final Set<Long> hostDirHashes = ConcurrentHashMap.newKeySet();
+
+    private ResolutionWatcher() {
+    }
+
+    /**
+     * Whether the watcher is running, in which case cached entries are kept up to
+     * date.
+     */
+    static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Whether the directory with the given hash, as seen from the given location,
+     * is being watched, in which case cached entries for executables found in it
+     * are kept up to date.
+     *
+     * @see ResolutionCache#dirHash(String)
+     */
+    static boolean isWatched(boolean sandbox, long dirHash) {
+        return running && dirHash != 0 && (sandbox ? sandboxDirHashes : hostDirHashes).contains(dirHash);
+    }
+
+    /**
+     * Starts watching, if enabled and possible.
+     */
+    static void start() {
+        if (!ENABLED) {
+            return;
+        }
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            ShimLog.warning("resolutionWatchUnavailable", "error", e);
+            return;
+        }
+
+        Set<String> sandboxDirs = new LinkedHashSet<>();
+        String path = System.getenv("PATH");
+        if (path != null) {
+            sandboxDirs.addAll(Arrays.asList(path.split(File.pathSeparator)));
+        }
+        Set<String> hostDirs = new LinkedHashSet<>(Arrays.asList(HOST_DIRS));
+        String home = System.getProperty("user.home");
+        hostDirs.add(home + "/.local/bin");
+        hostDirs.add(home + "/bin");
+        Map<String, String> login = HostLoginEnvironment.get();
+        if (login != null && login.get("PATH") != null) {
+            hostDirs.addAll(Arrays.asList(login.get("PATH").split(File.pathSeparator)));
+        }
+
+        register(watcher, sandboxDirs, SANDBOX);
+        register(watcher, hostDirs, HOST);
+        if (keys.isEmpty()) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+        running = true;
+        // Occupies one of the shim's worker threads for good
+        ShimExecutor.get().execute(() -> run(watcher));
+    }
+
+    private static void register(WatchService watcher, Set<String> dirs, int location) {
+        String home = System.getProperty("user.home");
+        for (String dir : dirs) {
+            if (dir.isEmpty() || !dir.startsWith("/")) {
+                continue;
+            }
+            // Host directories are watched where the host's filesystems are mounted, except
+            // home directories, which are at the same path in the sandbox and on the host
+            String watched = location == HOST && !dir.startsWith(home + "/") ? "/run/host" + dir : dir;
+            Path p;
+            try {
+                p = Paths.get(watched);
+            } catch (InvalidPathException e) {
+                continue;
+            }
+            if (!Files.isDirectory(p)) {
+                continue;
+            }
+            try {
+                WatchKey key = p.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                // A directory that is both on the PATH and a host directory affects both
+                keys.merge(key, location, (a, b) -> a | b);
+                // Recorded as the probes in that location report it
+                (location == SANDBOX ? sandboxDirHashes : hostDirHashes).add(ResolutionCache.dirHash(dir));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void run(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                int location = keys.getOrDefault(key, SANDBOX | HOST);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        ResolutionCache.invalidateAll();
+                    } else {
+                        String name = event.context().toString();
+                        if ((location & SANDBOX) != 0) {
+                            ResolutionCache.invalidate(true, name);
+                        }
+                        if ((location & HOST) != 0) {
+                            ResolutionCache.invalidate(false, name);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    // The directory went away, anything installed there if it comes back would
+                    // go unnoticed, so fall back to expiring entries
+                    running = false;
+                    ResolutionCache.invalidateAll();
+                    watcher.close();
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | IOException e) {
+            running = false;
+        }
+    }
+}
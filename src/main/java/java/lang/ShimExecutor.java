@@ -0,0 +1,50 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The pool of daemon threads that the Flatpak shim uses for work that should
+ * not be done on the caller's thread or on the process reaper thread.
+ * Threads are only created when there is work to do and idle threads are
+ * retired, so nothing is held on behalf of processes that are merely running.
+ */
+final class ShimExecutor {
+
+    private static final Executor executor = AccessController.doPrivileged((PrivilegedAction<Executor>) () -> {
+        ThreadGroup tg = Thread.currentThread().getThreadGroup();
+        while (tg.getParent() != null) {
+            tg = tg.getParent();
+        }
+        ThreadGroup systemThreadGroup = tg;
+
+        ThreadFactory threadFactory = worker -> {
+            Thread t = new Thread(systemThreadGroup, worker, "flatpak shim worker", 0, false);
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newCachedThreadPool(threadFactory);
+    });
+
+    private ShimExecutor() {
+    }
+
+    /**
+     * Gets the shared executor.
+     */
+    static Executor get() {
+        return executor;
+    }
+}
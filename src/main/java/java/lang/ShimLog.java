@@ -0,0 +1,116 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.lang.System.Logger.Level;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logging for the shim. Records are structured as an event name followed by
+ * key/value pairs, and are handed to a background thread that formats them and
+ * writes them to the "flatpak.hostcommandrunner" {@link System.Logger}, so that
+ * starting a process never waits on the log.
+ *
+ * Debug records are only produced when the "flatpak.hostcommandrunner.debug"
+ * system property is true. The property is read once, and callers are expected
+ * to test {@link #DEBUG} before logging so that nothing is allocated when debug
+ * logging is disabled. If the background thread falls behind, records are
+ * dropped rather than queued without bound, and the number dropped is logged
+ * once it catches up.
+ */
+final class ShimLog {
+
+    static final boolean DEBUG = Boolean.getBoolean("flatpak.hostcommandrunner.debug");
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private ShimLog() {
+    }
+
+    private static final class Record {
+        final Level level;
+        final String event;
+        final Object[] fields;
+
+        Record(Level level, String event, Object[] fields) {
+            this.level = level;
+            this.event = event;
+            this.fields = fields;
+        }
+
+        String format() {
+            StringBuilder sb = new StringBuilder(event);
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                sb.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Lazily initialised so that the writer thread is only started when something is logged. */
+    private static final class Writer {
+        static final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        static final LongAdder dropped = new LongAdder();
+
+        static {
+            // Occupies one of the shim's worker threads for good
+            ShimExecutor.get().execute(Writer::run);
+        }
+
+        private static void run() {
+            System.Logger logger = System.getLogger("flatpak.hostcommandrunner");
+            while (true) {
+                Record record;
+                try {
+                    record = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                logger.log(record.level, record.format());
+                long n = dropped.sumThenReset();
+                if (n > 0) {
+                    logger.log(Level.WARNING, "dropped records=" + n);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs a debug record. Callers should check {@link #DEBUG} first.
+     *
+     * @param event the name of the event
+     * @param fields alternating keys and values
+     */
+    static void debug(String event, Object... fields) {
+        if (DEBUG) {
+            // The debug property asks for the output, so log at a level that is shown by
+            // default
+            log(Level.INFO, event, fields);
+        }
+    }
+
+    /**
+     * Logs a warning record.
+     *
+     * @param event the name of the event
+     * @param fields alternating keys and values
+     */
+    static void warning(String event, Object... fields) {
+        log(Level.WARNING, event, fields);
+    }
+
+    private static void log(Level level, String event, Object[] fields) {
+        if (!Writer.queue.offer(new Record(level, event, fields))) {
+            Writer.dropped.increment();
+        }
+    }
+}
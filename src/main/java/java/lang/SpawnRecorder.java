@@ -0,0 +1,327 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the shape of every process start that the shim handles to a compact
+ * binary trace, so that real workloads, such as that of an IDE, can be replayed
+ * later to evaluate changes to the shim.
+ *
+ * Recording is enabled by setting the "flatpak.hostcommandrunner.record" system
+ * property to the path of the trace file, which is overwritten. Each record
+ * holds when the process was started relative to the start of the recording,
+ * how long starting it took, how long it ran, where it was run, how many
+ * processes were running at the time, the program and the number and total
+ * size of its arguments, and the number of bytes that passed through its
+ * standard streams by the time it exited. The traffic of processes run inside
+ * the sandbox is not observable, so is recorded as zero. The values of the
+ * arguments and the environment are never recorded.
+ *
+ * A record is written once its process exits, so records are not in start
+ * order. Records are handed to a background thread that writes them, and are
+ * dropped rather than queued without bound if it falls behind.
+ */
+final class SpawnRecorder {
+
+    private static final String TRACE = System.getProperty("flatpak.hostcommandrunner.record");
+
+    static final boolean ENABLED = TRACE != null && !TRACE.isEmpty();
+
+    /** The magic number at the start of a trace, "FDSR". */
+    static final int MAGIC = 0x46445352;
+    static final int VERSION = 1;
+
+    static final int SANDBOX = 0;
+    static final int HOST = 1;
+    static final int COALESCED = 2;
+    static final int FAILED = 3;
+
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private static final long origin = System.nanoTime();
+    private static final AtomicInteger running = new AtomicInteger();
+
+    private SpawnRecorder() {
+    }
+
+    /**
+     * A single record of a trace. Times are in microseconds.
+     */
+    static final class Record {
+        long startMicros;
+        long startLatencyMicros;
+        long lifetimeMicros;
+        int route;
+        int concurrency;
+        String program;
+        int argc;
+        long argBytes;
+        long stdinBytes;
+        long stdoutBytes;
+        long stderrBytes;
+
+        void write(DataOutput out) throws IOException {
+            writeVarLong(out, startMicros);
+            writeVarLong(out, startLatencyMicros);
+            writeVarLong(out, lifetimeMicros);
+            out.writeByte(route);
+            writeVarLong(out, concurrency);
+            byte[] name = program.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, name.length);
+            out.write(name);
+            writeVarLong(out, argc);
+            writeVarLong(out, argBytes);
+            writeVarLong(out, stdinBytes);
+            writeVarLong(out, stdoutBytes);
+            writeVarLong(out, stderrBytes);
+        }
+
+        /**
+         * Reads the next record of a trace.
+         *
+         * @return the record, or null at the end of the trace
+         */
+        static Record read(DataInput in) throws IOException {
+            Record r = new Record();
+            try {
+                r.startMicros = readVarLong(in);
+            } catch (EOFException e) {
+                return null;
+            }
+            r.startLatencyMicros = readVarLong(in);
+            r.lifetimeMicros = readVarLong(in);
+            r.route = in.readUnsignedByte();
+            r.concurrency = (int) readVarLong(in);
+            byte[] name = new byte[(int) readVarLong(in)];
+            in.readFully(name);
+            r.program = new String(name, StandardCharsets.UTF_8);
+            r.argc = (int) readVarLong(in);
+            r.argBytes = readVarLong(in);
+            r.stdinBytes = readVarLong(in);
+            r.stdoutBytes = readVarLong(in);
+            r.stderrBytes = readVarLong(in);
+            return r;
+        }
+    }
+
+    /**
+     * Reads and checks the header of a trace.
+     *
+     * @throws IOException if the stream is not a trace this version can read
+     */
+    static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a spawn trace");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported spawn trace version: " + version);
+        }
+    }
+
+    /** Unsigned LEB128, most values in a trace fit in one or two bytes. */
+    private static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.writeByte((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed spawn trace");
+    }
+
+    /** Lazily initialised so that the trace is only created when something is recorded. */
+    private static final class Writer {
+        static final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        static final LongAdder dropped = new LongAdder();
+        static final OutputStream out = open();
+
+        static {
+            if (out != null) {
+                // Occupies one of the shim's worker threads for good
+                ShimExecutor.get().execute(Writer::run);
+                Runtime.getRuntime().addShutdownHook(new Thread(Writer::drain, "spawn-recorder-flush"));
+            }
+        }
+
+        private static OutputStream open() {
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(TRACE)));
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                return out;
+            } catch (IOException e) {
+                ShimLog.warning("recordingUnavailable", "path", TRACE, "error", e);
+                return null;
+            }
+        }
+
+        private static void run() {
+            while (true) {
+                byte[] record;
+                try {
+                    record = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    synchronized (out) {
+                        if (record != null) {
+                            out.write(record);
+                        }
+                        // Keep the trace complete up to the last quiet moment, since the JVM may
+                        // be killed rather than exit normally
+                        if (queue.isEmpty()) {
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    ShimLog.warning("recordingFailed", "path", TRACE, "error", e);
+                    return;
+                }
+                long n = dropped.sumThenReset();
+                if (n > 0) {
+                    ShimLog.warning("droppedSpawnRecords", "count", n);
+                }
+            }
+        }
+
+        private static void drain() {
+            try {
+                synchronized (out) {
+                    byte[] record;
+                    while ((record = queue.poll()) != null) {
+                        out.write(record);
+                    }
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * A process start that is being recorded.
+     */
+    static final class Spawn {
+        private final Record record = new Record();
+        private final long startNanos = System.nanoTime();
+
+        private Spawn(String[] cmdarray) {
+            record.startMicros = (startNanos - origin) / 1000;
+            record.concurrency = running.incrementAndGet();
+            record.program = cmdarray[0];
+            record.argc = cmdarray.length;
+            for (int i = 1; i < cmdarray.length; i++) {
+                record.argBytes += cmdarray[i].getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+
+        /**
+         * Called once the process has been started, the record is written when it
+         * exits.
+         */
+        void started(Process process) {
+            long startedNanos = System.nanoTime();
+            record.startLatencyMicros = (startedNanos - startNanos) / 1000;
+            HostUsage usage;
+            if (process instanceof FlatpakProcessImpl) {
+                record.route = HOST;
+                usage = ((FlatpakProcessImpl) process).hostUsage();
+            } else {
+                record.route = process instanceof CoalescedExecution.View ? COALESCED : SANDBOX;
+                usage = null;
+            }
+            // Waiting on the handle rather than the process keeps abandoned processes
+            // collectable
+            CompletableFuture<?> exit;
+            try {
+                exit = process.toHandle().onExit();
+            } catch (UnsupportedOperationException e) {
+                exit = process.onExit();
+            }
+            exit.whenComplete((unused, unusedThrowable) -> {
+                record.lifetimeMicros = (System.nanoTime() - startedNanos) / 1000;
+                if (usage == null) {
+                    finish();
+                    return;
+                }
+                // Output left in the pipes at exit is only counted once it has been drained
+                usage.finished().thenAccept(bytes -> {
+                    record.stdinBytes = bytes.get("stdinBytes");
+                    record.stdoutBytes = bytes.get("stdoutBytes");
+                    record.stderrBytes = bytes.get("stderrBytes");
+                    finish();
+                });
+            });
+        }
+
+        /** Called if the process could not be started. */
+        void failed() {
+            record.startLatencyMicros = (System.nanoTime() - startNanos) / 1000;
+            record.route = FAILED;
+            finish();
+        }
+
+        private void finish() {
+            running.decrementAndGet();
+            if (Writer.out == null) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try {
+                record.write(new DataOutputStream(bytes));
+            } catch (IOException e) {
+                throw new InternalError(e);
+            }
+            if (!Writer.queue.offer(bytes.toByteArray())) {
+                Writer.dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Begins recording a process start.
+     *
+     * @return the recording, or null if recording is disabled
+     */
+    static Spawn begin(String[] cmdarray) {
+        return ENABLED ? new Spawn(cmdarray) : null;
+    }
+}
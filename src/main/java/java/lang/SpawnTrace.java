@@ -0,0 +1,191 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records when each stage of starting a process was reached, so that it is
+ * possible to tell where the time went when starting a process is slow.
+ *
+ * Tracing is enabled by setting the "flatpak.hostcommandrunner.trace" system
+ * property to true. The traces of the most recent process starts are kept in a
+ * fixed size ring buffer that is written without locking, and can be dumped on
+ * demand. If the "flatpak.hostcommandrunner.traceThresholdMillis" system
+ * property is also set, the trace of any process start that takes longer than
+ * that is logged as soon as the process has started.
+ *
+ * All timestamps are from the monotonic clock, which is what both
+ * {@link System#nanoTime()} and the native part of the shim use, so stages
+ * recorded on either side can be compared.
+ */
+final class SpawnTrace {
+
+    static final boolean ENABLED = Boolean.getBoolean("flatpak.hostcommandrunner.trace");
+
+    private static final long THRESHOLD_NANOS = Long.getLong("flatpak.hostcommandrunner.traceThresholdMillis", -1)
+            * 1_000_000;
+
+    /** The start of the request in {@link ProcessImplFactory}. */
+    static final int REQUESTED = 0;
+    /** The "which" probe for the command in the sandbox finished. */
+    static final int SANDBOX_PROBED = 1;
+    /** The "which" probe for the command on the sandbox host finished. */
+    static final int HOST_PROBED = 2;
+    /** The command line and environment for flatpak-spawn were serialized. */
+    static final int SERIALIZED = 3;
+    /** The native code is about to call vfork. */
+    static final int FORKING = 4;
+    /** The parent returned from vfork, so the child has executed flatpak-spawn. */
+    static final int EXECUTED = 5;
+    /** The process object was returned to the caller. */
+    static final int STARTED = 6;
+    /** The process exited, only recorded for processes on the sandbox host. */
+    static final int EXITED = 7;
+
+    private static final String[] STAGE_NAMES = { "requested", "sandboxProbed", "hostProbed", "serialized", "forking",
+            "executed", "started", "exited" };
+
+    private static final int CAPACITY = 256;
+
+    private static final AtomicReferenceArray<Span> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+
+    private SpawnTrace() {
+    }
+
+    /**
+     * The trace of a single process start. The stage timestamps are zero for
+     * stages that were not reached.
+     */
+    static final class Span {
+        private final long id;
+        private final String command;
+        private final AtomicLongArray stamps = new AtomicLongArray(STAGE_NAMES.length);
+
+        private Span(long id, String command) {
+            this.id = id;
+            this.command = command;
+            stamps.set(REQUESTED, System.nanoTime());
+        }
+
+        void stage(int stage) {
+            stamps.set(stage, System.nanoTime());
+        }
+
+        /**
+         * Returns an array for the native code to fill in with the timestamps of
+         * the stages it reaches, which must then be passed to
+         * {@link #nativeStages(long[])}.
+         */
+        static long[] newNativeStages() {
+            return new long[STAGE_NAMES.length];
+        }
+
+        void nativeStages(long[] nativeStamps) {
+            for (int i = 0; i < nativeStamps.length; i++) {
+                if (nativeStamps[i] != 0) {
+                    stamps.set(i, nativeStamps[i]);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("#").append(id).append(' ').append(command);
+            long start = stamps.get(REQUESTED);
+            for (int i = REQUESTED + 1; i < STAGE_NAMES.length; i++) {
+                long stamp = stamps.get(i);
+                if (stamp != 0) {
+                    sb.append(' ').append(STAGE_NAMES[i]).append("=+").append((stamp - start) / 1000).append("us");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Begins tracing a process start on the current thread.
+     *
+     * @return the trace, or null if tracing is disabled
+     */
+    static Span begin(String command) {
+        if (!ENABLED) {
+            return null;
+        }
+        Span span = new Span(sequence.getAndIncrement(), command);
+        current.set(span);
+        return span;
+    }
+
+    /**
+     * Returns the trace of the process start in progress on the current thread,
+     * or null if there is none.
+     */
+    static Span current() {
+        return ENABLED ? current.get() : null;
+    }
+
+    /**
+     * Detaches the trace of the process start in progress on the current thread,
+     * so that processes started on its behalf, such as "which" probes, are not
+     * recorded in it.
+     */
+    static Span suspend() {
+        if (!ENABLED) {
+            return null;
+        }
+        Span span = current.get();
+        current.remove();
+        return span;
+    }
+
+    static void resume(Span span) {
+        if (span != null) {
+            current.set(span);
+        }
+    }
+
+    /**
+     * Ends tracing a process start on the current thread and publishes its trace.
+     */
+    static void end(Span span) {
+        if (span == null) {
+            return;
+        }
+        current.remove();
+        ring.set((int) (span.id % CAPACITY), span);
+        long started = span.stamps.get(STARTED);
+        if (THRESHOLD_NANOS >= 0 && started != 0 && started - span.stamps.get(REQUESTED) > THRESHOLD_NANOS) {
+            ShimLog.warning("slowStart", "trace", span);
+        }
+    }
+
+    /**
+     * Returns the traces of the most recent process starts, oldest first, one per
+     * line.
+     */
+    static String dump() {
+        StringBuilder sb = new StringBuilder();
+        long last = sequence.get();
+        for (long id = Math.max(0, last - CAPACITY); id < last; id++) {
+            Span span = ring.get((int) (id % CAPACITY));
+            // Skip slots that have since been reused or are not yet published
+            if (span != null && span.id == id) {
+                sb.append(span).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the output that is left over in a process's pipe when the process
+ * exits, so that the pipe can be closed but the output can still be read by
+ * the user.
+ *
+ * Output is kept as a list of chunks in memory, up to the limit given by the
+ * "flatpak.hostcommandrunner.stragglerMemoryLimit" system property (in bytes),
+ * and anything beyond that limit is spilled to a temporary file that is
+ * deleted when the stream returned by {@link #toInputStream()} is closed.
+ */
+final class StragglerBuffer {
+
+    private static final long MEMORY_LIMIT = Long.getLong("flatpak.hostcommandrunner.stragglerMemoryLimit",
+            1024 * 1024);
+
+    private static final int TRANSFER_SIZE = 8192;
+
+    private final List<InputStream> chunks = new ArrayList<>();
+    private long inMemory;
+    private SeekableByteChannel spill;
+    private byte[] transfer;
+
+    private StragglerBuffer() {
+    }
+
+    /**
+     * Reads everything that is currently available from the given stream without
+     * blocking.
+     *
+     * @return a stream of the bytes that were read, or null if there were none
+     */
+    static InputStream drain(InputStream in) throws IOException {
+        StragglerBuffer buffer = null;
+        try {
+            int j;
+            while ((j = in.available()) > 0) {
+                if (buffer == null) {
+                    buffer = new StragglerBuffer();
+                }
+                if (!buffer.readFrom(in, j)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (buffer != null) {
+                buffer.discard();
+            }
+            throw e;
+        }
+        return buffer == null ? null : buffer.toInputStream();
+    }
+
+    private boolean readFrom(InputStream in, int available) throws IOException {
+        if (spill == null && inMemory + available <= MEMORY_LIMIT) {
+            byte[] chunk = new byte[available];
+            int n = in.read(chunk, 0, available);
+            if (n < 0) {
+                return false;
+            }
+            chunks.add(new ByteArrayInputStream(chunk, 0, n));
+            inMemory += n;
+            return true;
+        }
+        if (spill == null) {
+            Path file = Files.createTempFile("flatpak-shim-", ".stragglers");
+            spill = Files.newByteChannel(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            transfer = new byte[TRANSFER_SIZE];
+        }
+        int remaining = available;
+        while (remaining > 0) {
+            int n = in.read(transfer, 0, Math.min(remaining, transfer.length));
+            if (n < 0) {
+                return false;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(transfer, 0, n);
+            while (bb.hasRemaining()) {
+                spill.write(bb);
+            }
+            remaining -= n;
+        }
+        return true;
+    }
+
+    private InputStream toInputStream() throws IOException {
+        if (spill != null) {
+            spill.position(0);
+            chunks.add(Channels.newInputStream(spill));
+        }
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        return new SequenceInputStream(Collections.enumeration(chunks));
+    }
+
+    private void discard() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*********************************************************************
+ * Copyright (c) 2019 Red Hat, Inc. and others.
+ *
+ * This program and the accompanying materials are made
+ * available under the terms of the Eclipse Public License 2.0
+ * which is available at https://www.eclipse.org/legal/epl-2.0/
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ **********************************************************************/
+package java.lang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_METHOD)
+public class ResolutionCacheTests {
+
+    private final ResolutionCache.Table table = new ResolutionCache.Table(ResolutionCache.newPrivateBuffer(), 60_000);
+
+    @Test
+    public void storeAndLookup() {
+        Assertions.assertNull(table.lookup(true, "git", "/usr/bin"));
+        table.store(true, "git", "/usr/bin", true, "/usr/bin");
+        table.store(false, "git", "/usr/bin", false, null);
+        Assertions.assertEquals(Boolean.TRUE, table.lookup(true, "git", "/usr/bin"));
+        Assertions.assertEquals(Boolean.FALSE, table.lookup(false, "git", "/usr/bin"));
+        table.store(true, "git", "/usr/bin", false, null);
+        Assertions.assertEquals(Boolean.FALSE, table.lookup(true, "git", "/usr/bin"));
+    }
+
+    @Test
+    public void keyedByPath() {
+        table.store(true, "mvn", "/usr/bin", false, null);
+        table.store(true, "mvn", "/opt/maven/bin:/usr/bin", true, "/usr/bin");
+        Assertions.assertEquals(Boolean.FALSE, table.lookup(true, "mvn", "/usr/bin"));
+        Assertions.assertEquals(Boolean.TRUE, table.lookup(true, "mvn", "/opt/maven/bin:/usr/bin"));
+        Assertions.assertNull(table.lookup(true, "mvn", "/bin"));
+        Assertions.assertNull(table.lookup(true, "mvn", null));
+
+        // Invalidating a name forgets it on every path, but only in its location
+        table.store(false, "mvn", "/usr/bin", true, "/usr/bin");
+        table.invalidate(true, "mvn");
+        Assertions.assertNull(table.lookup(true, "mvn", "/usr/bin"));
+        Assertions.assertNull(table.lookup(true, "mvn", "/opt/maven/bin:/usr/bin"));
+        Assertions.assertEquals(Boolean.TRUE, table.lookup(false, "mvn", "/usr/bin"));
+        table.invalidateAll();
+        Assertions.assertNull(table.lookup(false, "mvn", "/usr/bin"));
+    }
+
+    @Test
+    public void entriesExpire() throws InterruptedException {
+        ResolutionCache.Table shortLived = new ResolutionCache.Table(ResolutionCache.newPrivateBuffer(), 50);
+        shortLived.store(true, "gcc", "/usr/bin", true, "/usr/bin");
+        Assertions.assertEquals(Boolean.TRUE, shortLived.lookup(true, "gcc", "/usr/bin"));
+        Thread.sleep(100);
+        Assertions.assertNull(shortLived.lookup(true, "gcc", "/usr/bin"));
+        // Storing again renews the entry
+        shortLived.store(true, "gcc", "/usr/bin", true, "/usr/bin");
+        Assertions.assertEquals(Boolean.TRUE, shortLived.lookup(true, "gcc", "/usr/bin"));
+    }
+
+    @Test
+    public void dirHashIsNormalised() {
+        Assertions.assertEquals(ResolutionCache.dirHash("/usr/bin"), ResolutionCache.dirHash("/usr/bin/"));
+        Assertions.assertEquals(ResolutionCache.dirHash("/usr/bin"), ResolutionCache.dirHash("/usr/./bin"));
+        Assertions.assertNotEquals(ResolutionCache.dirHash("/usr/bin"), ResolutionCache.dirHash("/bin"));
+        // Unknown directories are never considered to be watched
+        Assertions.assertEquals(0, ResolutionCache.dirHash(null));
+        Assertions.assertFalse(ResolutionWatcher.isWatched(true, 0));
+    }
+
+    @Test
+    public void concurrentStoreAndLookup() throws InterruptedException, ExecutionException {
+        // Writers flip the presence of a few names that share slots with each other,
+        // readers must only ever see values that were stored for the exact key
+        int writers = 4;
+        int readers = 4;
+        int names = 16;
+        int rounds = 20_000;
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            tasks.add(executor.submit(() -> {
+                go.await();
+                for (int i = 0; i < rounds; i++) {
+                    int n = i % names;
+                    // A name is only ever stored as present on the even path
+                    table.store(true, "exe" + n, "/even", true, "/usr/bin");
+                    table.store(true, "exe" + n, "/odd", false, null);
+                    if (i % 97 == 0) {
+                        table.invalidate(true, "exe" + n);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            tasks.add(executor.submit(() -> {
+                go.await();
+                for (int i = 0; i < rounds; i++) {
+                    int n = i % names;
+                    Boolean even = table.lookup(true, "exe" + n, "/even");
+                    Boolean odd = table.lookup(true, "exe" + n, "/odd");
+                    Assertions.assertTrue(even == null || even, "torn read of the even path");
+                    Assertions.assertTrue(odd == null || !odd, "torn read of the odd path");
+                    Assertions.assertNull(table.lookup(false, "exe" + n, "/even"));
+                }
+                return null;
+            }));
+        }
+        go.countDown();
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+        for (int n = 0; n < names; n++) {
+            table.store(true, "exe" + n, "/even", true, "/usr/bin");
+            Assertions.assertEquals(Boolean.TRUE, table.lookup(true, "exe" + n, "/even"));
+        }
+    }
+}
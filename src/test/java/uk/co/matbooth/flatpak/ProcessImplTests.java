@@ -10,13 +10,28 @@
 package uk.co.matbooth.flatpak;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -80,6 +95,97 @@ public class ProcessImplTests {
         Assertions.assertLinesMatch(expected, outLines);
     }
 
+    @Test
+    public void waitForWithTimeout() throws IOException, InterruptedException {
+        Process p = new ProcessBuilder("/var/run/host/usr/bin/sleep", "1").start();
+        Assertions.assertTrue(p.isAlive());
+        Assertions.assertFalse(p.waitFor(10, TimeUnit.MILLISECONDS));
+        long start = System.nanoTime();
+        Assertions.assertTrue(p.waitFor(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        Assertions.assertFalse(p.isAlive());
+        Assertions.assertEquals(0, p.exitValue());
+    }
+
+    @Test
+    public void reclaimAbandonedProcesses() throws IOException, InterruptedException {
+        File fds = new File("/proc/self/fd");
+        int before = fds.list().length;
+        List<ProcessHandle> handles = new ArrayList<>();
+        try {
+            List<Process> processes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                Process p = new ProcessBuilder("/var/run/host/usr/bin/sleep", "60").start();
+                processes.add(p);
+                handles.add(p.toHandle());
+            }
+            Assertions.assertTrue(fds.list().length >= before + 100, "Processes were started without pipes");
+            // Neither waited for nor are their streams closed, but still running
+            processes.clear();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            int after;
+            do {
+                System.gc();
+                Thread.sleep(100);
+                after = fds.list().length;
+            } while (after > before + 10 && System.nanoTime() < deadline);
+            Assertions.assertTrue(after <= before + 10, "Leaked " + (after - before) + " descriptors");
+            for (ProcessHandle handle : handles) {
+                Assertions.assertTrue(handle.isAlive());
+            }
+        } finally {
+            for (ProcessHandle handle : handles) {
+                handle.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void runOnHostWithTerminal() throws IOException, InterruptedException {
+        Map<String, String> env = new HashMap<>();
+        env.put("FLATPAK_HOST_PTY", "100x30");
+        int rc = readThenWait(false, null, env, "/var/run/host/usr/bin/sh", "-c",
+                "test -t 1 && stty size <&1 && echo 'oh no' 1>&2");
+        Assertions.assertEquals(0, rc);
+        List<String> expected = new ArrayList<>();
+        expected.add("30 100");
+        expected.add("oh no");
+        Assertions.assertLinesMatch(expected, outLines);
+        Assertions.assertTrue(errLines.isEmpty());
+    }
+
+    @Test
+    public void closeStdinWithTerminal() throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder("/var/run/host/usr/bin/sh", "-c", "test ! -t 0 && cat && echo done");
+        pb.environment().put("FLATPAK_HOST_PTY", "");
+        Process p = pb.start();
+        try (OutputStream in = p.getOutputStream()) {
+            in.write("hello\n".getBytes());
+        }
+        Assertions.assertTrue(p.waitFor(10, TimeUnit.SECONDS), "process did not see the end of its input");
+        Assertions.assertEquals(0, p.exitValue());
+        try (BufferedReader outReader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            Assertions.assertEquals("hello", outReader.readLine());
+            Assertions.assertEquals("done", outReader.readLine());
+        }
+    }
+
+    @Test
+    public void redirectStdoutWithTerminal() throws IOException, InterruptedException {
+        File out = File.createTempFile("pty-test", ".txt");
+        out.deleteOnExit();
+        ProcessBuilder pb = new ProcessBuilder("/var/run/host/usr/bin/sh", "-c", "echo out; echo err 1>&2");
+        pb.environment().put("FLATPAK_HOST_PTY", "");
+        pb.redirectOutput(out);
+        Process p = pb.start();
+        // Standard error does not follow standard output into the terminal
+        try (BufferedReader errReader = new BufferedReader(new InputStreamReader(p.getErrorStream()))) {
+            Assertions.assertEquals("err", errReader.readLine());
+        }
+        Assertions.assertEquals(0, p.waitFor());
+        Assertions.assertEquals(Collections.singletonList("out"), Files.readAllLines(out.toPath()));
+    }
+
     @Test
     public void passEnvVariable() throws IOException, InterruptedException {
         Map<String, String> env = new HashMap<>();
@@ -95,6 +201,17 @@ public class ProcessImplTests {
         Assertions.assertTrue(found);
     }
 
+    @Test
+    public void applySchedulingAttributes() throws IOException, InterruptedException {
+        Map<String, String> env = new HashMap<>();
+        env.put("FLATPAK_HOST_NICE", "5");
+        readThenWait(true, null, env, "/var/run/host/usr/bin/sh", "-c", "nice && env");
+        Assertions.assertEquals("5", outLines.get(0));
+        for (String line : outLines) {
+            Assertions.assertFalse(line.startsWith("FLATPAK_HOST_NICE="));
+        }
+    }
+
     @Test
     public void changeWorkingDir() throws IOException, InterruptedException {
         readThenWait(true, new File("/tmp"), null, "/var/run/host/usr/bin/sh", "-c", "pwd");
@@ -113,6 +230,175 @@ public class ProcessImplTests {
         avoidDoubleInvokationOfWhich("test", 0, "/usr/bin/test");
     }
 
+    @Test
+    public void publishOutputOnDemand()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        Process p = new ProcessBuilder("/var/run/host/bin/sh", "-c", "echo one && echo two").start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<String> result = new CompletableFuture<>();
+        FlatpakShim.stdoutPublisher(p).subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                out.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                result.complete(out.toString());
+            }
+        });
+        Assertions.assertEquals("one\ntwo\n", result.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, p.waitFor());
+    }
+
+    @Test
+    public void cancelPublisherWhileProcessIsSilent()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        Process p = new ProcessBuilder("/var/run/host/usr/bin/sleep", "60").start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Flow.Subscription> subscribed = new CompletableFuture<>();
+            FlatpakShim.stdoutPublisher(p, executor).subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(1);
+                    subscribed.complete(subscription);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            // Let the executor block reading the silent pipe
+            Thread.sleep(500);
+            subscribed.get(10, TimeUnit.SECONDS).cancel();
+            // The executor is free again long before the process would write or exit
+            Assertions.assertTrue(executor.submit(() -> true).get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(p.isAlive());
+        } finally {
+            executor.shutdownNow();
+            p.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void captureOutputIntoMapping() throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder("/var/run/host/usr/bin/seq", "100000");
+        Process p = FlatpakShim.startCapturingOutput(pb);
+        ByteBuffer output = FlatpakShim.capturedOutput(p);
+        Assertions.assertEquals(0, p.exitValue());
+        Assertions.assertTrue(output.isReadOnly());
+        byte[] bytes = new byte[output.remaining()];
+        output.get(bytes);
+        String[] lines = new String(bytes).split("\n");
+        Assertions.assertEquals(100000, lines.length);
+        Assertions.assertEquals("100000", lines[lines.length - 1]);
+    }
+
+    @Test
+    public void feedSameInputToManyProcesses()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            processes.add(new ProcessBuilder("/var/run/host/usr/bin/wc", "-c").start());
+        }
+        ByteBuffer input = ByteBuffer.wrap("some input\n".repeat(10000).getBytes());
+        FlatpakShim.feedInput(input, processes.toArray(new Process[0])).get(10, TimeUnit.SECONDS);
+        for (Process p : processes) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                Assertions.assertEquals("110000", reader.readLine().trim());
+            }
+            Assertions.assertEquals(0, p.waitFor());
+        }
+    }
+
+    @Test
+    public void coalesceIdenticalHostCommands() throws IOException, InterruptedException, ExecutionException {
+        // Eligible because it matches the coalescing pattern that the tests are run with
+        String[] command = { "/var/run/host/bin/sh", "-c", "echo coalesce-test $$; sleep 2; echo done; exit 3" };
+        int n = 4;
+        CountDownLatch ready = new CountDownLatch(n);
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        List<Future<Process>> starts = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            starts.add(executor.submit(() -> {
+                ready.countDown();
+                ready.await();
+                return new ProcessBuilder(command).start();
+            }));
+        }
+        List<Process> processes = new ArrayList<>();
+        for (Future<Process> start : starts) {
+            processes.add(start.get());
+        }
+        executor.shutdown();
+
+        // Destroying one view must leave the shared execution running for the others
+        processes.get(0).destroy();
+        List<String> outputs = new ArrayList<>();
+        for (Process p : processes.subList(1, n)) {
+            Assertions.assertEquals(processes.get(1).pid(), p.pid());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                outputs.add(reader.readLine() + "|" + reader.readLine() + "|" + reader.readLine());
+            }
+            Assertions.assertEquals(3, p.waitFor());
+        }
+        // The echoed shell PID shows that a single host process served every view
+        String expected = outputs.get(0);
+        Assertions.assertTrue(expected.matches("coalesce-test \\d+\\|done\\|null"), expected);
+        for (String output : outputs) {
+            Assertions.assertEquals(expected, output);
+        }
+    }
+
+    @Test
+    public void closeCoalescedViewWhileReading()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        Process p = new ProcessBuilder("/var/run/host/bin/sh", "-c", "echo coalesce-test; sleep 60").start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            InputStream in = p.getInputStream();
+            Future<Integer> blocked = executor.submit(() -> {
+                // Consumes the first line, then waits for output that does not come
+                in.read(new byte[64]);
+                return in.read(new byte[64]);
+            });
+            Thread.sleep(500);
+            in.close();
+            try {
+                blocked.get(5, TimeUnit.SECONDS);
+                Assertions.fail("read of a closed view returned");
+            } catch (ExecutionException e) {
+                Assertions.assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdownNow();
+            p.destroyForcibly();
+        }
+    }
+
     private void avoidDoubleInvokationOfWhich(String exe, int retcode, String message)
             throws IOException, InterruptedException {
         int rc1 = readThenWait(true, "which", exe);